@@ -0,0 +1,256 @@
+package ro.nico.tag.nbt.api.path;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ro.nico.tag.nbt.api.Tag;
+import ro.nico.tag.nbt.api.registry.TagTypeRegistry;
+import ro.nico.tag.nbt.api.visitor.TagReader;
+import ro.nico.tag.nbt.tags.array.ByteArrayTag;
+import ro.nico.tag.nbt.tags.array.IntArrayTag;
+import ro.nico.tag.nbt.tags.array.LongArrayTag;
+import ro.nico.tag.nbt.tags.collection.CompoundTag;
+import ro.nico.tag.nbt.tags.collection.ListTag;
+import ro.nico.tag.nbt.tags.primitive.ByteTag;
+import ro.nico.tag.nbt.tags.primitive.IntTag;
+import ro.nico.tag.nbt.tags.primitive.LongTag;
+import ro.nico.tag.util.ByteBufferInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A compiled path to a tag nested in a compound, such as {@code shops[3].owner.uuid}: keys separated by dots, each
+ * followed by any number of list (or array) indexes. Keys containing other characters than letters, digits, {@code _},
+ * {@code -} and {@code +} are written between double quotes, escaping {@code "} and {@code \} with a {@code \}.
+ * <p>
+ * A path is compiled once, and thread-safe. It finds its tag in a compound tag, or directly in the serialized data of
+ * one (such as the data of a chunk), skipping everything else without decoding it.
+ */
+public final class TagPath {
+    private final String source;
+    private final Segment[] segments;
+
+    private TagPath(String source, Segment[] segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+
+    /**
+     * A key, with its modified UTF-8 encoding as written by {@link DataOutput#writeUTF(String)}, or an index.
+     */
+    private record Segment(@Nullable String key, byte @Nullable [] encodedKey, int index) {
+    }
+
+    /**
+     * Compiles a path.
+     *
+     * @param path the path.
+     * @return the compiled path.
+     * @throws IllegalArgumentException if the path is malformed.
+     */
+    public static TagPath compile(@NotNull String path) {
+        List<Segment> segments = new ArrayList<>();
+        int i = 0;
+        while (true) {
+            StringBuilder key = new StringBuilder();
+            if (i < path.length() && path.charAt(i) == '"') {
+                for (i++; i < path.length() && path.charAt(i) != '"'; i++) {
+                    if (path.charAt(i) == '\\' && ++i == path.length())
+                        break;
+                    key.append(path.charAt(i));
+                }
+                if (i++ >= path.length())
+                    throw new IllegalArgumentException("Unterminated key in tag path " + path);
+            } else {
+                for (; i < path.length() && isKeyChar(path.charAt(i)); i++)
+                    key.append(path.charAt(i));
+                if (key.isEmpty())
+                    throw new IllegalArgumentException("Expected a key at " + i + " in tag path " + path);
+            }
+            segments.add(new Segment(key.toString(), encode(key.toString()), -1));
+            while (i < path.length() && path.charAt(i) == '[') {
+                int end = path.indexOf(']', i);
+                if (end < 0)
+                    throw new IllegalArgumentException("Unterminated index at " + i + " in tag path " + path);
+                try {
+                    int index = Integer.parseInt(path, i + 1, end, 10);
+                    if (index < 0)
+                        throw new IllegalArgumentException("Negative index at " + i + " in tag path " + path);
+                    segments.add(new Segment(null, null, index));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid index at " + i + " in tag path " + path, ex);
+                }
+                i = end + 1;
+            }
+            if (i == path.length())
+                return new TagPath(path, segments.toArray(new Segment[0]));
+            if (path.charAt(i++) != '.')
+                throw new IllegalArgumentException("Unexpected character at " + (i - 1) + " in tag path " + path);
+        }
+    }
+
+    private static boolean isKeyChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '+';
+    }
+
+    private static byte[] encode(String key) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(key);
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Key too long in tag path: " + key, ex);
+        }
+    }
+
+    /**
+     * Finds the tag of this path in a compound tag.
+     *
+     * @param root the compound tag.
+     * @return the tag, or null if there isn't any.
+     */
+    public @Nullable Tag get(@NotNull CompoundTag root) {
+        Tag tag = root;
+        for (Segment segment : this.segments) {
+            if (segment.key() != null) {
+                if (!(tag instanceof CompoundTag compound))
+                    return null;
+                tag = compound.getValue().get(segment.key());
+            } else {
+                tag = element(tag, segment.index());
+            }
+            if (tag == null)
+                return null;
+        }
+        return tag;
+    }
+
+    private static @Nullable Tag element(Tag tag, int index) {
+        if (tag instanceof ListTag<?> list)
+            return index < list.getValue().size() ? list.getValue().get(index) : null;
+        if (tag instanceof ByteArrayTag array)
+            return index < array.getValue().length ? new ByteTag(null, array.getValue()[index]) : null;
+        if (tag instanceof IntArrayTag array)
+            return index < array.getValue().length ? new IntTag(null, array.getValue()[index]) : null;
+        if (tag instanceof LongArrayTag array)
+            return index < array.getValue().length ? new LongTag(null, array.getValue()[index]) : null;
+        return null;
+    }
+
+    /**
+     * Finds the tag of this path in the serialized entries of a compound, as written by
+     * {@link CompoundTag#write(DataOutput, int)}. Only the tag found is decoded, the input is left right after it.
+     *
+     * @param input the input.
+     * @return the tag, or null if there isn't any.
+     * @throws IOException if any I/O error occurs, or the data is malformed.
+     */
+    public @Nullable Tag read(@NotNull DataInput input) throws IOException {
+        byte type = 10;
+        String name = null;
+        for (int i = 0; i < this.segments.length; i++) {
+            Segment segment = this.segments[i];
+            if (segment.key() != null) {
+                if (type != 10)
+                    return null;
+                type = findKey(input, segment.encodedKey(), i);
+                if (type == 0)
+                    return null;
+                name = segment.key();
+                continue;
+            }
+            name = null;
+            boolean last = i == this.segments.length - 1;
+            switch (type) {
+                case 9 -> {
+                    type = input.readByte();
+                    if (segment.index() >= readLength(input))
+                        return null;
+                    TagReader.skipElements(input, type, segment.index(), i);
+                }
+                case 7 -> {
+                    if (!last || segment.index() >= readLength(input))
+                        return null;
+                    TagReader.skipBytes(input, segment.index());
+                    return new ByteTag(null, input.readByte());
+                }
+                case 11 -> {
+                    if (!last || segment.index() >= readLength(input))
+                        return null;
+                    TagReader.skipBytes(input, 4L * segment.index());
+                    return new IntTag(null, input.readInt());
+                }
+                case 12 -> {
+                    if (!last || segment.index() >= readLength(input))
+                        return null;
+                    TagReader.skipBytes(input, 8L * segment.index());
+                    return new LongTag(null, input.readLong());
+                }
+                default -> {
+                    return null;
+                }
+            }
+        }
+        Supplier<Tag> tagFactory = TagTypeRegistry.getFactoryFromId(type);
+        if (tagFactory == null || type == 0)
+            throw new IOException("Tag type with ID " + type + " not present in tag type registry.");
+        Tag tag = tagFactory.get();
+        tag.setName(name);
+        return tag.read(input, this.segments.length);
+    }
+
+    /**
+     * Finds the tag of this path in the serialized entries of a compound, without copying the buffer.
+     *
+     * @see #read(DataInput)
+     */
+    public @Nullable Tag read(@NotNull ByteBuffer buffer) throws IOException {
+        return this.read(new DataInputStream(new ByteBufferInputStream(buffer)));
+    }
+
+    /**
+     * Reads the entries of a compound up to the one with a given key, comparing the encoded keys byte per byte.
+     *
+     * @return the type ID of the entry, left unread, or 0 if there isn't any.
+     */
+    private static byte findKey(DataInput input, byte[] encodedKey, int depth) throws IOException {
+        byte type;
+        while ((type = input.readByte()) != 0) {
+            int length = input.readUnsignedShort();
+            boolean matches = length == encodedKey.length - 2;
+            int read = 0;
+            while (matches && read < length)
+                matches = input.readByte() == encodedKey[2 + read++];
+            if (matches)
+                return type;
+            TagReader.skipBytes(input, length - read);
+            TagReader.skip(input, type, depth + 1);
+        }
+        return 0;
+    }
+
+    private static int readLength(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0)
+            throw new IOException("Negative NBT length " + length);
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return this.source;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return this == that || (that instanceof TagPath other && this.source.equals(other.source));
+    }
+
+    @Override
+    public int hashCode() {
+        return this.source.hashCode();
+    }
+}
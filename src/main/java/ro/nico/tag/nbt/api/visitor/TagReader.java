@@ -0,0 +1,247 @@
+package ro.nico.tag.nbt.api.visitor;
+
+import ro.nico.tag.nbt.api.Tag;
+import ro.nico.tag.nbt.api.registry.TagTypeRegistry;
+import ro.nico.tag.util.ByteBufferInputStream;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * Reads serialized NBT as a stream of events pushed to a {@link TagVisitor}, without creating any tag. Skipped values
+ * are skipped over in the input, without being decoded.
+ */
+public final class TagReader {
+    private static final int MAX_DEPTH = 512;
+
+    private final DataInput input;
+    private final TagVisitor visitor;
+
+    private TagReader(DataInput input, TagVisitor visitor) {
+        this.input = input;
+        this.visitor = visitor;
+    }
+
+    /**
+     * Reads the entries of a compound, as written by {@link ro.nico.tag.nbt.tags.collection.CompoundTag#write}
+     * (the serialized data of a chunk).
+     *
+     * @param input   the input.
+     * @param visitor the visitor.
+     * @return false if the visitor stopped the reading.
+     * @throws IOException if any I/O error occurs, or the data is malformed.
+     */
+    public static boolean readCompound(DataInput input, TagVisitor visitor) throws IOException {
+        return new TagReader(input, visitor).readPayload((byte) 10, 0) != TagVisitor.Result.BREAK;
+    }
+
+    /**
+     * Reads the entries of a compound from a buffer, without copying it.
+     *
+     * @see #readCompound(DataInput, TagVisitor)
+     */
+    public static boolean readCompound(ByteBuffer buffer, TagVisitor visitor) throws IOException {
+        return readCompound(new DataInputStream(new ByteBufferInputStream(buffer)), visitor);
+    }
+
+    /**
+     * Reads the value of a tag of a given type.
+     *
+     * @param input   the input.
+     * @param type    the type ID of the tag.
+     * @param visitor the visitor.
+     * @return false if the visitor stopped the reading.
+     * @throws IOException if any I/O error occurs, or the data is malformed.
+     */
+    public static boolean read(DataInput input, byte type, TagVisitor visitor) throws IOException {
+        return new TagReader(input, visitor).readPayload(type, 0) != TagVisitor.Result.BREAK;
+    }
+
+    /**
+     * Skips the entries of a compound, checking their structure but decoding nothing.
+     *
+     * @param input the input.
+     * @throws IOException if any I/O error occurs, or the data is malformed.
+     */
+    public static void skipCompound(DataInput input) throws IOException {
+        skip(input, (byte) 10, 0);
+    }
+
+    private TagVisitor.Result readPayload(byte type, int depth) throws IOException {
+        switch (type) {
+            case 1:
+                return this.visitor.visitByte(this.input.readByte());
+            case 2:
+                return this.visitor.visitShort(this.input.readShort());
+            case 3:
+                return this.visitor.visitInt(this.input.readInt());
+            case 4:
+                return this.visitor.visitLong(this.input.readLong());
+            case 5:
+                return this.visitor.visitFloat(this.input.readFloat());
+            case 6:
+                return this.visitor.visitDouble(this.input.readDouble());
+            case 7: {
+                byte[] value = new byte[readLength(this.input)];
+                this.input.readFully(value);
+                return this.visitor.visitByteArray(value);
+            }
+            case 8:
+                return this.visitor.visitString(this.input.readUTF());
+            case 9:
+                return this.readList(depth);
+            case 10:
+                return this.readCompound(depth);
+            case 11: {
+                int[] value = new int[readLength(this.input)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = this.input.readInt();
+                return this.visitor.visitIntArray(value);
+            }
+            case 12: {
+                long[] value = new long[readLength(this.input)];
+                for (int i = 0; i < value.length; i++)
+                    value[i] = this.input.readLong();
+                return this.visitor.visitLongArray(value);
+            }
+            default:
+                return this.visitor.visitCustom(readCustom(this.input, type, depth));
+        }
+    }
+
+    private TagVisitor.Result readCompound(int depth) throws IOException {
+        if (depth > MAX_DEPTH)
+            throw new IOException("NBT structure too complex (depth > 512).");
+        TagVisitor.Result result = this.visitor.visitCompoundStart();
+        if (result != TagVisitor.Result.CONTINUE) {
+            if (result == TagVisitor.Result.SKIP)
+                skip(this.input, (byte) 10, depth);
+            return result;
+        }
+        byte type;
+        while ((type = this.input.readByte()) != 0) {
+            result = this.visitor.visitKey(type, this.input.readUTF());
+            if (result == TagVisitor.Result.BREAK)
+                return result;
+            if (result == TagVisitor.Result.SKIP)
+                skip(this.input, type, depth + 1);
+            else if (this.readPayload(type, depth + 1) == TagVisitor.Result.BREAK)
+                return TagVisitor.Result.BREAK;
+        }
+        return this.visitor.visitCompoundEnd();
+    }
+
+    private TagVisitor.Result readList(int depth) throws IOException {
+        if (depth > MAX_DEPTH)
+            throw new IOException("NBT structure too complex (depth > 512).");
+        byte type = this.input.readByte();
+        int length = readLength(this.input);
+        TagVisitor.Result result = this.visitor.visitListStart(type, length);
+        if (result != TagVisitor.Result.CONTINUE) {
+            if (result == TagVisitor.Result.SKIP)
+                skipElements(this.input, type, length, depth);
+            return result;
+        }
+        for (int i = 0; i < length; i++)
+            if (this.readPayload(type, depth + 1) == TagVisitor.Result.BREAK)
+                return TagVisitor.Result.BREAK;
+        return this.visitor.visitListEnd();
+    }
+
+    /**
+     * Skips the value of a tag of a given type, checking its structure but decoding nothing.
+     *
+     * @param input the input.
+     * @param type  the type ID of the tag.
+     * @param depth the depth of the tag, as passed to {@link Tag#read(DataInput, int)}.
+     * @throws IOException if any I/O error occurs, or the data is malformed.
+     */
+    public static void skip(DataInput input, byte type, int depth) throws IOException {
+        switch (type) {
+            case 1 -> skipBytes(input, 1);
+            case 2 -> skipBytes(input, 2);
+            case 3, 5 -> skipBytes(input, 4);
+            case 4, 6 -> skipBytes(input, 8);
+            case 7 -> skipBytes(input, readLength(input));
+            case 8 -> skipBytes(input, input.readUnsignedShort());
+            case 9 -> {
+                if (depth > MAX_DEPTH)
+                    throw new IOException("NBT structure too complex (depth > 512).");
+                byte elementType = input.readByte();
+                skipElements(input, elementType, readLength(input), depth);
+            }
+            case 10 -> {
+                if (depth > MAX_DEPTH)
+                    throw new IOException("NBT structure too complex (depth > 512).");
+                byte entryType;
+                while ((entryType = input.readByte()) != 0) {
+                    skipBytes(input, input.readUnsignedShort()); // the key
+                    skip(input, entryType, depth + 1);
+                }
+            }
+            case 11 -> skipBytes(input, 4L * readLength(input));
+            case 12 -> skipBytes(input, 8L * readLength(input));
+            default -> readCustom(input, type, depth);
+        }
+    }
+
+    /**
+     * Skips elements of a list, all at once if they have a fixed size.
+     *
+     * @param input  the input.
+     * @param type   the type ID of the elements.
+     * @param length the number of elements to skip.
+     * @param depth  the depth of the list.
+     * @throws IOException if any I/O error occurs, or the data is malformed.
+     */
+    public static void skipElements(DataInput input, byte type, int length, int depth) throws IOException {
+        long size = switch (type) {
+            case 1 -> 1;
+            case 2 -> 2;
+            case 3, 5 -> 4;
+            case 4, 6 -> 8;
+            default -> -1;
+        };
+        if (size > 0) { // fixed size elements, skipped at once
+            skipBytes(input, size * length);
+            return;
+        }
+        for (int i = 0; i < length; i++)
+            skip(input, type, depth + 1);
+    }
+
+    /**
+     * Skips bytes, failing if the input ends before.
+     *
+     * @param input the input.
+     * @param count the number of bytes to skip.
+     * @throws IOException if any I/O error occurs, or the input ends.
+     */
+    public static void skipBytes(DataInput input, long count) throws IOException {
+        while (count > 0) {
+            int skipped = input.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0) { // skipBytes may skip nothing before the end, readByte tells
+                input.readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static int readLength(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0)
+            throw new IOException("Negative NBT length " + length);
+        return length;
+    }
+
+    private static Tag readCustom(DataInput input, byte type, int depth) throws IOException {
+        Supplier<Tag> tagFactory = TagTypeRegistry.getFactoryFromId(type);
+        if (tagFactory == null || type == 0)
+            throw new IOException("Tag type with ID " + type + " not present in tag type registry.");
+        return tagFactory.get().read(input, depth + 1);
+    }
+}
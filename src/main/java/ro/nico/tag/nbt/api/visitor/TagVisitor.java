@@ -0,0 +1,103 @@
+package ro.nico.tag.nbt.api.visitor;
+
+import ro.nico.tag.nbt.api.Tag;
+
+/**
+ * Receives the events of a {@link TagReader}, which reads serialized NBT without building the tags. Every method does
+ * nothing and continues by default, so a visitor only overrides the events it needs.
+ * <p>
+ * A compound is reported as {@link #visitCompoundStart()}, then {@link #visitKey(byte, String)} followed by the value of
+ * each entry, then {@link #visitCompoundEnd()}. A list is reported as {@link #visitListStart(byte, int)}, its elements
+ * and {@link #visitListEnd()}. Type IDs are the ones of {@link ro.nico.tag.nbt.tags.TagType}.
+ */
+public interface TagVisitor {
+    /**
+     * Returned by the events to control the reading.
+     */
+    enum Result {
+        /**
+         * Continues with the next event.
+         */
+        CONTINUE,
+        /**
+         * After a key, skips its value. After the start of a compound or list, skips its content, and its end isn't
+         * reported. Same as {@link #CONTINUE} after the other events.
+         */
+        SKIP,
+        /**
+         * Stops reading, the rest of the input is left unread.
+         */
+        BREAK
+    }
+
+    default Result visitKey(byte type, String key) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitCompoundStart() {
+        return Result.CONTINUE;
+    }
+
+    default Result visitCompoundEnd() {
+        return Result.CONTINUE;
+    }
+
+    default Result visitListStart(byte elementType, int length) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitListEnd() {
+        return Result.CONTINUE;
+    }
+
+    default Result visitByte(byte value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitShort(short value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitInt(int value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitLong(long value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitFloat(float value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitDouble(double value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitString(String value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitByteArray(byte[] value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitIntArray(int[] value) {
+        return Result.CONTINUE;
+    }
+
+    default Result visitLongArray(long[] value) {
+        return Result.CONTINUE;
+    }
+
+    /**
+     * Reports a tag of a custom type (see {@link ro.nico.tag.nbt.api.registry.TagTypeRegistry}), which is read as a
+     * tag since its format is only known by the tag.
+     *
+     * @param tag the tag.
+     * @return how to continue.
+     */
+    default Result visitCustom(Tag tag) {
+        return Result.CONTINUE;
+    }
+}
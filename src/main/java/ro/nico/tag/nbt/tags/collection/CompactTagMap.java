@@ -0,0 +1,302 @@
+package ro.nico.tag.nbt.tags.collection;
+
+import org.jetbrains.annotations.NotNull;
+import ro.nico.tag.nbt.api.Tag;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * The default map of a compound tag. Its entries are kept in insertion order in parallel arrays of keys and values, and
+ * found through an open addressing table of their indexes, so it doesn't allocate a node per entry like a
+ * {@link LinkedHashMap}. Lookups with keys read by the tags (see {@link ro.nico.tag.nbt.utils.KeyInterner}) reuse their
+ * cached hash, and usually match by reference.
+ * <p>
+ * Removed entries leave a tombstone in the arrays, compacted once they'd make the arrays grow, so removals take constant
+ * time like in a {@link LinkedHashMap}. The map isn't thread-safe, and its iterators are fail-fast.
+ */
+public class CompactTagMap extends AbstractMap<String, Tag> {
+    private static final int DEFAULT_CAPACITY = 8;
+    @SuppressWarnings("StringOperationCanBeSimplified")
+    private static final String REMOVED = new String(""); // the key of a removed entry, compared by identity
+
+    private String[] keys;
+    private Tag[] values;
+    private int[] table; // the index + 1 of the entry in each slot, 0 if free. A power of two, at least twice the capacity
+    private int size;
+    private int used; // the entries used in the arrays, removed ones included
+    private int modCount;
+    private Set<Map.Entry<String, Tag>> entrySet;
+    private Collection<Tag> valuesView;
+
+    public CompactTagMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public CompactTagMap(int capacity) {
+        capacity = Math.max(capacity, 2);
+        this.keys = new String[capacity];
+        this.values = new Tag[capacity];
+        this.table = new int[tableSize(capacity)];
+    }
+
+    public CompactTagMap(@NotNull Map<String, ? extends Tag> map) {
+        this(map.size());
+        this.putAll(map);
+    }
+
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int hash(Object key) {
+        int hash = Objects.hashCode(key);
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the slot of a key, or the free slot where it would be put.
+     */
+    private int slot(Object key) {
+        int mask = this.table.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int entry = this.table[slot];
+            if (entry == 0 || Objects.equals(this.keys[entry - 1], key))
+                return slot;
+        }
+    }
+
+    private int indexOf(Object key) {
+        return this.table[this.slot(key)] - 1;
+    }
+
+    private void rehash() {
+        Arrays.fill(this.table, 0);
+        for (int i = 0; i < this.used; i++)
+            this.table[this.slot(this.keys[i])] = i + 1;
+    }
+
+    /**
+     * Removes the entries left by removals from the arrays, keeping the order of the others.
+     */
+    private void compact() {
+        int live = 0;
+        for (int i = 0; i < this.used; i++) {
+            if (this.keys[i] == REMOVED)
+                continue;
+            this.keys[live] = this.keys[i];
+            this.values[live] = this.values[i];
+            live++;
+        }
+        Arrays.fill(this.keys, live, this.used, null);
+        Arrays.fill(this.values, live, this.used, null);
+        this.used = live;
+        this.rehash();
+    }
+
+    private void removeAt(int index) {
+        // backward shift deletion: the following entries of the probe sequence take the free slot if they can
+        int mask = this.table.length - 1;
+        int free = this.slot(this.keys[index]);
+        for (int slot = (free + 1) & mask; this.table[slot] != 0; slot = (slot + 1) & mask) {
+            int home = hash(this.keys[this.table[slot] - 1]) & mask;
+            if (((slot - home) & mask) >= ((slot - free) & mask)) { // its home isn't between the free slot and it
+                this.table[free] = this.table[slot];
+                free = slot;
+            }
+        }
+        this.table[free] = 0;
+        this.keys[index] = REMOVED;
+        this.values[index] = null;
+        this.size--;
+        this.modCount++;
+        while (this.used > 0 && this.keys[this.used - 1] == REMOVED) { // removed last, no need to keep them
+            this.used--;
+            this.keys[this.used] = null;
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (int i = 0; i < this.used; i++)
+            if (this.keys[i] != REMOVED && Objects.equals(this.values[i], value))
+                return true;
+        return false;
+    }
+
+    @Override
+    public Tag get(Object key) {
+        int index = this.indexOf(key);
+        return index < 0 ? null : this.values[index];
+    }
+
+    @Override
+    public Tag put(String key, Tag value) {
+        int slot = this.slot(key);
+        int entry = this.table[slot];
+        if (entry != 0) {
+            Tag previous = this.values[entry - 1];
+            this.values[entry - 1] = value;
+            return previous;
+        }
+        if (this.used == this.keys.length) {
+            if (this.size <= this.used / 2) { // half of them are removed, room is made by compacting them
+                this.compact();
+            } else {
+                int capacity = this.keys.length * 2;
+                this.keys = Arrays.copyOf(this.keys, capacity);
+                this.values = Arrays.copyOf(this.values, capacity);
+                this.table = new int[tableSize(capacity)];
+                this.rehash();
+            }
+            slot = this.slot(key);
+        }
+        this.keys[this.used] = key;
+        this.values[this.used] = value;
+        this.table[slot] = ++this.used;
+        this.size++;
+        this.modCount++;
+        return null;
+    }
+
+    @Override
+    public Tag remove(Object key) {
+        int index = this.indexOf(key);
+        if (index < 0)
+            return null;
+        Tag previous = this.values[index];
+        this.removeAt(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.keys, 0, this.used, null);
+        Arrays.fill(this.values, 0, this.used, null);
+        Arrays.fill(this.table, 0);
+        this.size = 0;
+        this.used = 0;
+        this.modCount++;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Tag> action) {
+        int modCount = this.modCount;
+        for (int i = 0; i < this.used && modCount == this.modCount; i++)
+            if (this.keys[i] != REMOVED)
+                action.accept(this.keys[i], this.values[i]);
+        if (modCount != this.modCount)
+            throw new ConcurrentModificationException();
+    }
+
+    @Override
+    public @NotNull Collection<Tag> values() {
+        if (this.valuesView == null)
+            this.valuesView = new AbstractCollection<>() {
+                @Override
+                public @NotNull Iterator<Tag> iterator() {
+                    return new EntryIterator<>() {
+                        @Override
+                        Tag get(int index) {
+                            return CompactTagMap.this.values[index];
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return CompactTagMap.this.size;
+                }
+
+                @Override
+                public void clear() {
+                    CompactTagMap.this.clear();
+                }
+            };
+        return this.valuesView;
+    }
+
+    @Override
+    public @NotNull Set<Map.Entry<String, Tag>> entrySet() {
+        if (this.entrySet == null)
+            this.entrySet = new AbstractSet<>() {
+                @Override
+                public @NotNull Iterator<Map.Entry<String, Tag>> iterator() {
+                    return new EntryIterator<>() {
+                        @Override
+                        Map.Entry<String, Tag> get(int index) {
+                            return new SimpleEntry<>(CompactTagMap.this.keys[index], CompactTagMap.this.values[index]) {
+                                @Override
+                                public Tag setValue(Tag value) {
+                                    CompactTagMap.this.values[index] = value;
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return CompactTagMap.this.size;
+                }
+
+                @Override
+                public void clear() {
+                    CompactTagMap.this.clear();
+                }
+            };
+        return this.entrySet;
+    }
+
+    private abstract class EntryIterator<E> implements Iterator<E> {
+        private int next = this.skipRemoved(0);
+        private int last = -1;
+        private int expectedModCount = CompactTagMap.this.modCount;
+
+        abstract E get(int index);
+
+        private int skipRemoved(int index) {
+            while (index < CompactTagMap.this.used && CompactTagMap.this.keys[index] == REMOVED)
+                index++;
+            return index;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next < CompactTagMap.this.used;
+        }
+
+        @Override
+        public E next() {
+            if (this.expectedModCount != CompactTagMap.this.modCount)
+                throw new ConcurrentModificationException();
+            if (this.next >= CompactTagMap.this.used)
+                throw new NoSuchElementException();
+            this.last = this.next;
+            this.next = this.skipRemoved(this.next + 1);
+            return this.get(this.last);
+        }
+
+        @Override
+        public void remove() {
+            if (this.last < 0)
+                throw new IllegalStateException();
+            if (this.expectedModCount != CompactTagMap.this.modCount)
+                throw new ConcurrentModificationException();
+            CompactTagMap.this.removeAt(this.last); // leaves a tombstone, the next entries keep their index
+            this.expectedModCount = CompactTagMap.this.modCount;
+            this.last = -1;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import ro.nico.tag.nbt.tags.array.ByteArrayTag;
 import ro.nico.tag.nbt.tags.array.IntArrayTag;
 import ro.nico.tag.nbt.tags.array.LongArrayTag;
 import ro.nico.tag.nbt.tags.primitive.*;
+import ro.nico.tag.nbt.utils.KeyInterner;
 import ro.nico.tag.nbt.utils.StringUtils;
 
 import java.io.DataInput;
@@ -39,7 +40,7 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
      * Constructs an empty, unnamed compound tag.
      */
     public CompoundTag() {
-        this(null, new LinkedHashMap<>());
+        this(null, new CompactTagMap());
     }
 
     /**
@@ -48,7 +49,7 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
      * @param name the tag's name.
      */
     public CompoundTag(String name) {
-        this(name, new LinkedHashMap<>());
+        this(name, new CompactTagMap());
     }
 
     /**
@@ -62,6 +63,23 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
         this.setValue(value);
     }
 
+    /**
+     * Constructs an unnamed compound tag from its serialized entries, as written by {@link #write(DataOutput, int)},
+     * decoding each entry only when it's first accessed. Entries never accessed are written back as they were read.
+     *
+     * @param data  the serialized entries, owned by the tag from now on.
+     * @param depth the depth of the tag, as passed to {@link #read(DataInput, int)}.
+     * @return the compound tag.
+     * @throws IOException if the depth is too high.
+     */
+    public static CompoundTag lazy(byte @NotNull [] data, int depth) throws IOException {
+        if (depth > 512) {
+            throw new IOException("NBT structure too complex (depth > 512).");
+        }
+
+        return new CompoundTag(null, new LazyTagMap(data, depth + 1));
+    }
+
     @Override
     public TagType getType() {
         return TagType.COMPOUND;
@@ -87,6 +105,12 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
             throw new IOException("NBT structure too complex (depth > 512).");
         }
 
+        if (this.value instanceof LazyTagMap lazy) {
+            lazy.write(output, depth);
+
+            return this;
+        }
+
         for (Tag tag : this) {
             output.writeByte(tag.getType().getId());
             output.writeUTF(tag.getName());
@@ -105,7 +129,7 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
             throw new IOException("NBT structure too complex (depth > 512).");
         }
 
-        Map<String, Tag> tags = new LinkedHashMap<>();
+        Map<String, Tag> tags = new CompactTagMap();
 
         byte nextTypeId;
         Tag nextTag;
@@ -118,7 +142,7 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
 
             nextTag = tagFactory.get();
 
-            nextTag.setName(input.readUTF());
+            nextTag.setName(KeyInterner.intern(input.readUTF()));
             nextTag.read(input, depth + 1);
 
             tags.put(nextTag.getName(), nextTag);
@@ -170,7 +194,7 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
             this.setName(null);
         }
 
-        Map<String, Tag> tags = new LinkedHashMap<>();
+        Map<String, Tag> tags = new CompactTagMap();
 
         String nextTypeId;
         Tag nextTag;
@@ -590,6 +614,11 @@ public class CompoundTag extends Tag implements SnbtSerializable, JsonSerializab
 
     @Override
     public CompoundTag copy() {
+        if (this.value instanceof LazyTagMap lazy) {
+            LazyTagMap untouched = lazy.copyUntouched();
+            if (untouched != null)
+                return new CompoundTag(null, untouched);
+        }
         CompoundTag copy = new CompoundTag();
         this.value.forEach((key, value) -> copy.put(key, value.copy()));
         return copy;
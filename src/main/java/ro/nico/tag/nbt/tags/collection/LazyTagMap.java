@@ -0,0 +1,241 @@
+package ro.nico.tag.nbt.tags.collection;
+
+import org.jetbrains.annotations.NotNull;
+import ro.nico.tag.nbt.api.Tag;
+import ro.nico.tag.nbt.api.registry.TagTypeRegistry;
+import ro.nico.tag.nbt.api.visitor.TagReader;
+import ro.nico.tag.nbt.utils.KeyInterner;
+import ro.nico.tag.util.ByteBufferInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * The entries of a compound tag read from their serialized form, see {@link CompoundTag#lazy(byte[], int)}.
+ * <p>
+ * The keys are indexed when the map is first accessed, and each value is decoded when it's first accessed. Values never
+ * decoded are written back by copying their serialized bytes, and the whole data is copied if the map was never
+ * accessed.
+ * <p>
+ * Reads are thread-safe like with the map of a compound read eagerly, even though they index and decode: the index is
+ * built once under the lock of the map and published safely, and each value is decoded once under that lock, so every
+ * reader gets the same tag. Like that map, it must not be modified while it's read by other threads.
+ */
+class LazyTagMap extends AbstractMap<String, Tag> {
+    private final byte[] data;
+    private final int depth;
+    private volatile LinkedHashMap<String, Value> entries;
+    private Set<Map.Entry<String, Tag>> entrySet;
+
+    /**
+     * @param data  the serialized entries, as written by {@link CompoundTag#write(DataOutput, int)}. Never modified.
+     * @param depth the depth of the values, as passed to {@link Tag#read(DataInput, int)}.
+     */
+    LazyTagMap(byte[] data, int depth) {
+        this.data = data;
+        this.depth = depth;
+    }
+
+    private record Raw(byte type, int offset, int length) {
+    }
+
+    /**
+     * The value of an entry: a tag, or the raw value not decoded yet. Replaced once decoded, and read without locking.
+     */
+    private static final class Value {
+        private volatile Object value;
+
+        private Value(Object value) {
+            this.value = value;
+        }
+    }
+
+    private LinkedHashMap<String, Value> entries() {
+        LinkedHashMap<String, Value> entries = this.entries;
+        if (entries != null)
+            return entries;
+        synchronized (this) {
+            if (this.entries == null)
+                this.entries = this.index();
+            return this.entries;
+        }
+    }
+
+    private LinkedHashMap<String, Value> index() {
+        ByteBuffer buffer = ByteBuffer.wrap(this.data);
+        DataInputStream input = new DataInputStream(new ByteBufferInputStream(buffer));
+        LinkedHashMap<String, Value> entries = new LinkedHashMap<>();
+        try {
+            byte type;
+            while ((type = input.readByte()) != 0) {
+                String key = KeyInterner.intern(input.readUTF());
+                int offset = buffer.position();
+                TagReader.skip(input, type, this.depth);
+                entries.put(key, new Value(new Raw(type, offset, buffer.position() - offset)));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Malformed compound data", ex);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the tag of an entry, decoding it the first time.
+     */
+    private Tag tag(String key, Value value) {
+        Object current = value.value;
+        if (!(current instanceof Raw))
+            return (Tag) current;
+        synchronized (this) {
+            current = value.value;
+            if (current instanceof Raw) { // not decoded by another reader in between
+                current = this.decode(key, current);
+                value.value = current;
+            }
+            return (Tag) current;
+        }
+    }
+
+    private Tag decode(String key, Object value) {
+        if (!(value instanceof Raw raw))
+            return (Tag) value;
+        Supplier<Tag> tagFactory = TagTypeRegistry.getFactoryFromId(raw.type());
+        if (tagFactory == null)
+            throw new UncheckedIOException(new IOException("Tag type with ID " + raw.type() + " not present in tag type registry."));
+        Tag tag = tagFactory.get();
+        tag.setName(key);
+        try {
+            return tag.read(new DataInputStream(new ByteArrayInputStream(this.data, raw.offset(), raw.length())), this.depth);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Malformed compound data", ex);
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.entries().size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.entries().containsKey(key);
+    }
+
+    @Override
+    public Tag get(Object key) {
+        Value value = this.entries().get(key);
+        return value == null ? null : this.tag((String) key, value);
+    }
+
+    @Override
+    public Tag put(String key, Tag tag) {
+        Value value = this.entries().get(key);
+        if (value == null) {
+            this.entries.put(key, new Value(tag));
+            return null;
+        }
+        Tag previous = this.tag(key, value);
+        value.value = tag; // keeps its place in the order
+        return previous;
+    }
+
+    @Override
+    public Tag remove(Object key) {
+        Value value = this.entries().remove(key);
+        return value == null ? null : this.tag((String) key, value);
+    }
+
+    @Override
+    public void clear() {
+        this.entries = new LinkedHashMap<>();
+    }
+
+    @Override
+    public @NotNull Set<String> keySet() {
+        return this.entries().keySet();
+    }
+
+    @Override
+    public @NotNull Set<Map.Entry<String, Tag>> entrySet() {
+        if (this.entrySet == null)
+            this.entrySet = new EntrySet();
+        return this.entrySet;
+    }
+
+    /**
+     * Writes the entries, copying the serialized bytes of the values never decoded.
+     */
+    void write(DataOutput output, int depth) throws IOException {
+        LinkedHashMap<String, Value> entries = this.entries;
+        if (entries == null) {
+            output.write(this.data);
+            return;
+        }
+        for (Map.Entry<String, Value> entry : entries.entrySet()) {
+            Object value = entry.getValue().value;
+            if (value instanceof Raw raw) {
+                output.writeByte(raw.type());
+                output.writeUTF(entry.getKey());
+                output.write(this.data, raw.offset(), raw.length());
+            } else {
+                Tag tag = (Tag) value;
+                output.writeByte(tag.getType().getId());
+                output.writeUTF(tag.getName());
+                tag.write(output, depth + 1);
+            }
+        }
+        output.writeByte(0);
+    }
+
+    /**
+     * Returns a copy sharing the serialized data, if the map was never accessed.
+     *
+     * @return the copy, or null if the map was accessed.
+     */
+    LazyTagMap copyUntouched() {
+        return this.entries == null ? new LazyTagMap(this.data, this.depth) : null;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, Tag>> {
+        @Override
+        public int size() {
+            return LazyTagMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            LazyTagMap.this.clear();
+        }
+
+        @Override
+        public @NotNull Iterator<Map.Entry<String, Tag>> iterator() {
+            Iterator<Map.Entry<String, Value>> iterator = LazyTagMap.this.entries().entrySet().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, Tag> next() {
+                    Map.Entry<String, Value> entry = iterator.next();
+                    Value value = entry.getValue();
+                    return new SimpleEntry<>(entry.getKey(), LazyTagMap.this.tag(entry.getKey(), value)) {
+                        @Override
+                        public Tag setValue(Tag tag) {
+                            value.value = tag;
+                            return super.setValue(tag);
+                        }
+                    };
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                }
+            };
+        }
+    }
+}
@@ -3,6 +3,11 @@ package ro.nico.tag.nbt.tags.collection;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import lombok.AllArgsConstructor;
 import org.jetbrains.annotations.NotNull;
 import ro.nico.tag.nbt.api.Tag;
@@ -28,6 +33,9 @@ import static java.util.Objects.requireNonNull;
 
 /**
  * The list tag (type ID 9) is used for storing an ordered list of unnamed NBT tags all of the same type.
+ * Lists of numbers read or created by {@link #integers(int...)} and the like store them as primitives, see
+ * {@link PrimitiveTagList}, while they're only read and written through the numeric getters and setters of the list.
+ * They're turned into a list of tags as soon as a tag of theirs is exposed or added, so the tags are the elements.
  *
  * @author dewy
  */
@@ -49,7 +57,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @param name the tag's name.
      */
     public ListTag(String name) {
-        this(name, new LinkedList<>());
+        this(name, new ArrayList<>());
     }
 
     /**
@@ -76,12 +84,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the list tag
      */
     public static @NotNull ListTag<ByteTag> bytes(byte @NotNull ... values) {
-        final ListTag<ByteTag> tag = new ListTag<>();
-
-        for (int value : values)
-            tag.add(new ByteTag(value));
-
-        return tag;
+        return new ListTag<>(null, new PrimitiveTagList.Bytes(new ByteArrayList(values)));
     }
 
     /**
@@ -91,12 +94,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the list tag
      */
     public static @NotNull ListTag<IntTag> integers(int @NotNull ... values) {
-        ListTag<IntTag> tag = new ListTag<>();
-
-        for (int value : values)
-            tag.add(new IntTag(value));
-
-        return tag;
+        return new ListTag<>(null, new PrimitiveTagList.Ints(new IntArrayList(values)));
     }
 
     /**
@@ -106,12 +104,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the list tag
      */
     public static @NotNull ListTag<DoubleTag> doubles(double @NotNull ... values) {
-        final ListTag<DoubleTag> tag = new ListTag<>();
-
-        for (final double value : values)
-            tag.add(new DoubleTag(value));
-
-        return tag;
+        return new ListTag<>(null, new PrimitiveTagList.Doubles(new DoubleArrayList(values)));
     }
 
     /**
@@ -121,12 +114,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the list tag
      */
     public static @NotNull ListTag<LongTag> longs(long @NotNull ... values) {
-        ListTag<LongTag> tag = new ListTag<>();
-
-        for (long value : values)
-            tag.add(new LongTag(value));
-
-        return tag;
+        return new ListTag<>(null, new PrimitiveTagList.Longs(new LongArrayList(values)));
     }
 
     /**
@@ -136,12 +124,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the list tag
      */
     public static @NotNull ListTag<FloatTag> floats(float @NotNull ... values) {
-        ListTag<FloatTag> tag = new ListTag<>();
-
-        for (float value : values)
-            tag.add(new FloatTag(value));
-
-        return tag;
+        return new ListTag<>(null, new PrimitiveTagList.Floats(new FloatArrayList(values)));
     }
 
     /**
@@ -166,6 +149,17 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
 
     @Override
     public @NotNull List<T> getValue() {
+        return this.tags();
+    }
+
+    /**
+     * Returns the elements as tags, replacing the primitives they're stored as, if they are.
+     */
+    @SuppressWarnings("unchecked")
+    private @NotNull List<T> tags() {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            this.value = (List<T>) primitives.toTags();
+
         return this.value;
     }
 
@@ -202,7 +196,13 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         output.writeByte(this.type.getId());
         output.writeInt(this.value.size());
 
-        for (Tag tag : this) {
+        if (this.value instanceof PrimitiveTagList<?> primitives) {
+            primitives.write(output);
+
+            return this;
+        }
+
+        for (Tag tag : this.value) {
             tag.write(output, depth + 1);
         }
 
@@ -216,11 +216,21 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
             throw new IOException("NBT structure too complex (depth > 512).");
         }
 
-        List<T> tags = new ArrayList<>();
-
         byte tagType = input.readByte();
         int length = input.readInt();
 
+        PrimitiveTagList<?> primitives = PrimitiveTagList.of(tagType);
+        if (primitives != null) {
+            primitives.read(input, length);
+
+            this.type = primitives.isEmpty() ? TagType.END : primitives.type();
+            this.value = (List<T>) primitives;
+
+            return this;
+        }
+
+        List<T> tags = new ArrayList<>();
+
         Tag next;
         for (int i = 0; i < length; i++) {
             Supplier<Tag> tagFactory = TagTypeRegistry.getFactoryFromId(tagType);
@@ -293,7 +303,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
             json.addProperty("name", this.getName());
         }
 
-        for (Tag tag : this) {
+        for (Tag tag : this.value) {
             tag.setName(null);
             value.add(((JsonSerializable) tag).toJson(depth + 1));
         }
@@ -319,7 +329,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         }
 
         String listType = json.getAsJsonPrimitive("listType").getAsString();
-        List<T> tags = new LinkedList<>();
+        List<T> tags = new ArrayList<>();
 
         Tag nextTag;
         for (JsonElement element : json.getAsJsonArray("value")) {
@@ -364,6 +374,9 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the byte value, or {@code defaultValue}
      */
     public byte getByte(int index, byte defaultValue) {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            return index >= 0 && index < primitives.size() ? primitives.byteValue(index) : defaultValue;
+
         Tag tag = this.get(index);
 
         if (tag.getType().isNumber())
@@ -372,6 +385,23 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         return defaultValue;
     }
 
+    /**
+     * Sets a byte, without creating a tag if the list stores primitives.
+     *
+     * @param index the index
+     * @param value the byte value
+     * @throws ClassCastException if this isn't a list of bytes
+     */
+    public void setByte(int index, byte value) {
+        if (this.value instanceof PrimitiveTagList.Bytes primitives) {
+            primitives.setByte(index, value);
+
+            return;
+        }
+
+        ((ByteTag) this.value.get(index)).setValue(value);
+    }
+
     public ByteTag getByteTag(int index) {
         return this.getByteTag(index, null);
     }
@@ -398,6 +428,9 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the short value, or {@code defaultValue}
      */
     public short getShort(int index, short defaultValue) {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            return index >= 0 && index < primitives.size() ? primitives.shortValue(index) : defaultValue;
+
         Tag tag = this.get(index);
 
         if (tag.getType().isNumber())
@@ -406,6 +439,23 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         return defaultValue;
     }
 
+    /**
+     * Sets a short, without creating a tag if the list stores primitives.
+     *
+     * @param index the index
+     * @param value the short value
+     * @throws ClassCastException if this isn't a list of shorts
+     */
+    public void setShort(int index, short value) {
+        if (this.value instanceof PrimitiveTagList.Shorts primitives) {
+            primitives.setShort(index, value);
+
+            return;
+        }
+
+        ((ShortTag) this.value.get(index)).setValue(value);
+    }
+
     public ShortTag getShortTag(int index) {
         return this.getShortTag(index, null);
     }
@@ -432,6 +482,9 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the int value, or {@code defaultValue}
      */
     public int getInt(int index, int defaultValue) {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            return index >= 0 && index < primitives.size() ? primitives.intValue(index) : defaultValue;
+
         Tag tag = this.get(index);
 
         if (tag.getType().isNumber())
@@ -440,6 +493,23 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         return defaultValue;
     }
 
+    /**
+     * Sets an int, without creating a tag if the list stores primitives.
+     *
+     * @param index the index
+     * @param value the int value
+     * @throws ClassCastException if this isn't a list of ints
+     */
+    public void setInt(int index, int value) {
+        if (this.value instanceof PrimitiveTagList.Ints primitives) {
+            primitives.setInt(index, value);
+
+            return;
+        }
+
+        ((IntTag) this.value.get(index)).setValue(value);
+    }
+
     public IntTag getIntTag(int index) {
         return this.getIntTag(index, null);
     }
@@ -466,6 +536,9 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the long value, or {@code defaultValue}
      */
     public long getLong(int index, long defaultValue) {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            return index >= 0 && index < primitives.size() ? primitives.longValue(index) : defaultValue;
+
         Tag tag = this.get(index);
 
         if (tag.getType().isNumber())
@@ -474,6 +547,23 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         return defaultValue;
     }
 
+    /**
+     * Sets a long, without creating a tag if the list stores primitives.
+     *
+     * @param index the index
+     * @param value the long value
+     * @throws ClassCastException if this isn't a list of longs
+     */
+    public void setLong(int index, long value) {
+        if (this.value instanceof PrimitiveTagList.Longs primitives) {
+            primitives.setLong(index, value);
+
+            return;
+        }
+
+        ((LongTag) this.value.get(index)).setValue(value);
+    }
+
     public LongTag getLongTag(int index) {
         return this.getLongTag(index, null);
     }
@@ -500,6 +590,9 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the float value, or {@code defaultValue}
      */
     public float getFloat(int index, float defaultValue) {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            return index >= 0 && index < primitives.size() ? primitives.floatValue(index) : defaultValue;
+
         Tag tag = this.get(index);
 
         if (tag.getType().isNumber())
@@ -508,6 +601,23 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         return defaultValue;
     }
 
+    /**
+     * Sets a float, without creating a tag if the list stores primitives.
+     *
+     * @param index the index
+     * @param value the float value
+     * @throws ClassCastException if this isn't a list of floats
+     */
+    public void setFloat(int index, float value) {
+        if (this.value instanceof PrimitiveTagList.Floats primitives) {
+            primitives.setFloat(index, value);
+
+            return;
+        }
+
+        ((FloatTag) this.value.get(index)).setValue(value);
+    }
+
     public FloatTag getFloatTag(int index) {
         return this.getFloatTag(index, null);
     }
@@ -534,6 +644,9 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
      * @return the double value, or {@code defaultValue}
      */
     public double getDouble(int index, double defaultValue) {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            return index >= 0 && index < primitives.size() ? primitives.doubleValue(index) : defaultValue;
+
         Tag tag = this.get(index);
 
         if (tag.getType().isNumber())
@@ -542,6 +655,23 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         return defaultValue;
     }
 
+    /**
+     * Sets a double, without creating a tag if the list stores primitives.
+     *
+     * @param index the index
+     * @param value the double value
+     * @throws ClassCastException if this isn't a list of doubles
+     */
+    public void setDouble(int index, double value) {
+        if (this.value instanceof PrimitiveTagList.Doubles primitives) {
+            primitives.setDouble(index, value);
+
+            return;
+        }
+
+        ((DoubleTag) this.value.get(index)).setValue(value);
+    }
+
     public DoubleTag getDoubleTag(int index) {
         return this.getDoubleTag(index, null);
     }
@@ -749,7 +879,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         if (index < 0 || index >= size())
             return defaultValue;
 
-        Tag tag = this.value.get(index);
+        Tag tag = this.tags().get(index);
 
         if (tag == null)
             return defaultValue;
@@ -777,7 +907,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
         if (index < 0 || index >= size())
             return defaultValue;
 
-        Tag tag = this.value.get(index);
+        Tag tag = this.tags().get(index);
 
         if (tag == null || tag.getType() != tagType)
             return defaultValue;
@@ -818,7 +948,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
             return false;
         }
 
-        return this.value.add(tag);
+        return this.tags().add(tag);
     }
 
     /**
@@ -837,7 +967,7 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
             return;
         }
 
-        this.value.add(index, tag);
+        this.tags().add(index, tag);
     }
 
     /**
@@ -903,17 +1033,17 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
 
     @Override
     public @NotNull Iterator<T> iterator() {
-        return this.value.iterator();
+        return this.tags().iterator();
     }
 
     @Override
     public void forEach(Consumer<? super T> action) {
-        this.value.forEach(action);
+        this.tags().forEach(action);
     }
 
     @Override
     public Spliterator<T> spliterator() {
-        return this.value.spliterator();
+        return this.tags().spliterator();
     }
 
     @Override
@@ -924,6 +1054,9 @@ public class ListTag<T extends Tag> extends Tag implements SnbtSerializable, Jso
     @SuppressWarnings("unchecked")
     @Override
     public ListTag<T> copy() {
+        if (this.value instanceof PrimitiveTagList<?> primitives)
+            return new ListTag<>(getName(), (List<T>) primitives.copy());
+
         return new ListTag<>(getName(), (List<T>) this.value.stream().map(T::copy).toList());
     }
 
@@ -0,0 +1,662 @@
+package ro.nico.tag.nbt.tags.collection;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import org.jetbrains.annotations.Nullable;
+import ro.nico.tag.nbt.tags.TagType;
+import ro.nico.tag.nbt.tags.primitive.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The elements of a numeric list tag, stored as primitives in a fastutil list instead of one tag per element, and
+ * read or written in bulk.
+ * <p>
+ * The tags returned are created on each access, so changing their value wouldn't change the list: {@link ListTag} only
+ * reads them internally, and replaces the list with {@link #toTags()} before exposing its elements.
+ */
+abstract class PrimitiveTagList<T extends NumericalTag<?>> extends AbstractList<T> implements RandomAccess {
+    private static final int BULK_BYTES = 8192;
+
+    /**
+     * Returns an empty list storing the elements of a type, if it's numeric.
+     *
+     * @param type the type ID of the elements.
+     * @return the list, or null if the type isn't numeric.
+     */
+    static @Nullable PrimitiveTagList<?> of(byte type) {
+        return switch (type) {
+            case 1 -> new Bytes(new ByteArrayList());
+            case 2 -> new Shorts(new ShortArrayList());
+            case 3 -> new Ints(new IntArrayList());
+            case 4 -> new Longs(new LongArrayList());
+            case 5 -> new Floats(new FloatArrayList());
+            case 6 -> new Doubles(new DoubleArrayList());
+            default -> null;
+        };
+    }
+
+    abstract TagType type();
+
+    /**
+     * Returns the size of an element, in bytes.
+     */
+    abstract int width();
+
+    abstract boolean isFloating();
+
+    /**
+     * Returns an element of an integral list, widened to a long.
+     */
+    abstract long longAt(int index);
+
+    /**
+     * Returns an element of a floating point list, widened to a double.
+     */
+    abstract double doubleAt(int index);
+
+    abstract PrimitiveTagList<T> copy();
+
+    /**
+     * Returns the elements as a list of tags.
+     */
+    List<T> toTags() {
+        return new ArrayList<>(this);
+    }
+
+    /**
+     * Adds elements from a buffer.
+     */
+    abstract void get(ByteBuffer buffer, int count);
+
+    /**
+     * Puts elements in a buffer.
+     */
+    abstract void put(ByteBuffer buffer, int from, int count);
+
+    byte byteValue(int index) {
+        return this.isFloating() ? (byte) this.doubleAt(index) : (byte) this.longAt(index);
+    }
+
+    short shortValue(int index) {
+        return this.isFloating() ? (short) this.doubleAt(index) : (short) this.longAt(index);
+    }
+
+    int intValue(int index) {
+        return this.isFloating() ? (int) this.doubleAt(index) : (int) this.longAt(index);
+    }
+
+    long longValue(int index) {
+        return this.isFloating() ? (long) this.doubleAt(index) : this.longAt(index);
+    }
+
+    float floatValue(int index) {
+        return this.isFloating() ? (float) this.doubleAt(index) : (float) this.longAt(index);
+    }
+
+    double doubleValue(int index) {
+        return this.isFloating() ? this.doubleAt(index) : (double) this.longAt(index);
+    }
+
+    /**
+     * Reads elements, a block of bytes at a time.
+     *
+     * @param input  the input.
+     * @param length the number of elements.
+     * @throws IOException if any I/O error occurs.
+     */
+    void read(DataInput input, int length) throws IOException {
+        if (length <= 0)
+            return;
+        int width = this.width();
+        byte[] bytes = new byte[(int) Math.min((long) length * width, BULK_BYTES)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int remaining = length; remaining > 0; ) {
+            int count = Math.min(remaining, BULK_BYTES / width);
+            input.readFully(bytes, 0, count * width);
+            buffer.clear();
+            this.get(buffer, count);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Writes the elements, a block of bytes at a time.
+     *
+     * @param output the output.
+     * @throws IOException if any I/O error occurs.
+     */
+    void write(DataOutput output) throws IOException {
+        int width = this.width();
+        byte[] bytes = new byte[(int) Math.min((long) this.size() * width, BULK_BYTES)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int from = 0; from < this.size(); ) {
+            int count = Math.min(this.size() - from, BULK_BYTES / width);
+            buffer.clear();
+            this.put(buffer, from, count);
+            output.write(bytes, 0, count * width);
+            from += count;
+        }
+    }
+
+    static final class Bytes extends PrimitiveTagList<ByteTag> {
+        private final ByteArrayList values;
+
+        Bytes(ByteArrayList values) {
+            this.values = values;
+        }
+
+        @Override
+        TagType type() {
+            return TagType.BYTE;
+        }
+
+        @Override
+        int width() {
+            return 1;
+        }
+
+        @Override
+        boolean isFloating() {
+            return false;
+        }
+
+        @Override
+        long longAt(int index) {
+            return this.values.getByte(index);
+        }
+
+        @Override
+        double doubleAt(int index) {
+            return this.values.getByte(index);
+        }
+
+        @Override
+        Bytes copy() {
+            return new Bytes(this.values.clone());
+        }
+
+        @Override
+        void get(ByteBuffer buffer, int count) {
+            this.values.ensureCapacity(this.values.size() + count);
+            for (int i = 0; i < count; i++)
+                this.values.add(buffer.get());
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int from, int count) {
+            for (int i = from; i < from + count; i++)
+                buffer.put(this.values.getByte(i));
+        }
+
+        void setByte(int index, byte value) {
+            this.values.set(index, value);
+        }
+
+        @Override
+        public ByteTag get(int index) {
+            return new ByteTag(null, this.values.getByte(index));
+        }
+
+        @Override
+        public ByteTag set(int index, ByteTag tag) {
+            return new ByteTag(null, this.values.set(index, tag.byteValue()));
+        }
+
+        @Override
+        public void add(int index, ByteTag tag) {
+            this.values.add(index, tag.byteValue());
+        }
+
+        @Override
+        public ByteTag remove(int index) {
+            return new ByteTag(null, this.values.removeByte(index));
+        }
+
+        @Override
+        public void clear() {
+            this.values.clear();
+        }
+
+        @Override
+        public int size() {
+            return this.values.size();
+        }
+    }
+
+    static final class Shorts extends PrimitiveTagList<ShortTag> {
+        private final ShortArrayList values;
+
+        Shorts(ShortArrayList values) {
+            this.values = values;
+        }
+
+        @Override
+        TagType type() {
+            return TagType.SHORT;
+        }
+
+        @Override
+        int width() {
+            return 2;
+        }
+
+        @Override
+        boolean isFloating() {
+            return false;
+        }
+
+        @Override
+        long longAt(int index) {
+            return this.values.getShort(index);
+        }
+
+        @Override
+        double doubleAt(int index) {
+            return this.values.getShort(index);
+        }
+
+        @Override
+        Shorts copy() {
+            return new Shorts(this.values.clone());
+        }
+
+        @Override
+        void get(ByteBuffer buffer, int count) {
+            this.values.ensureCapacity(this.values.size() + count);
+            for (int i = 0; i < count; i++)
+                this.values.add(buffer.getShort());
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int from, int count) {
+            for (int i = from; i < from + count; i++)
+                buffer.putShort(this.values.getShort(i));
+        }
+
+        void setShort(int index, short value) {
+            this.values.set(index, value);
+        }
+
+        @Override
+        public ShortTag get(int index) {
+            return new ShortTag(null, this.values.getShort(index));
+        }
+
+        @Override
+        public ShortTag set(int index, ShortTag tag) {
+            return new ShortTag(null, this.values.set(index, tag.shortValue()));
+        }
+
+        @Override
+        public void add(int index, ShortTag tag) {
+            this.values.add(index, tag.shortValue());
+        }
+
+        @Override
+        public ShortTag remove(int index) {
+            return new ShortTag(null, this.values.removeShort(index));
+        }
+
+        @Override
+        public void clear() {
+            this.values.clear();
+        }
+
+        @Override
+        public int size() {
+            return this.values.size();
+        }
+    }
+
+    static final class Ints extends PrimitiveTagList<IntTag> {
+        private final IntArrayList values;
+
+        Ints(IntArrayList values) {
+            this.values = values;
+        }
+
+        @Override
+        TagType type() {
+            return TagType.INT;
+        }
+
+        @Override
+        int width() {
+            return 4;
+        }
+
+        @Override
+        boolean isFloating() {
+            return false;
+        }
+
+        @Override
+        long longAt(int index) {
+            return this.values.getInt(index);
+        }
+
+        @Override
+        double doubleAt(int index) {
+            return this.values.getInt(index);
+        }
+
+        @Override
+        Ints copy() {
+            return new Ints(this.values.clone());
+        }
+
+        @Override
+        void get(ByteBuffer buffer, int count) {
+            this.values.ensureCapacity(this.values.size() + count);
+            for (int i = 0; i < count; i++)
+                this.values.add(buffer.getInt());
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int from, int count) {
+            for (int i = from; i < from + count; i++)
+                buffer.putInt(this.values.getInt(i));
+        }
+
+        void setInt(int index, int value) {
+            this.values.set(index, value);
+        }
+
+        @Override
+        public IntTag get(int index) {
+            return new IntTag(null, this.values.getInt(index));
+        }
+
+        @Override
+        public IntTag set(int index, IntTag tag) {
+            return new IntTag(null, this.values.set(index, tag.intValue()));
+        }
+
+        @Override
+        public void add(int index, IntTag tag) {
+            this.values.add(index, tag.intValue());
+        }
+
+        @Override
+        public IntTag remove(int index) {
+            return new IntTag(null, this.values.removeInt(index));
+        }
+
+        @Override
+        public void clear() {
+            this.values.clear();
+        }
+
+        @Override
+        public int size() {
+            return this.values.size();
+        }
+    }
+
+    static final class Longs extends PrimitiveTagList<LongTag> {
+        private final LongArrayList values;
+
+        Longs(LongArrayList values) {
+            this.values = values;
+        }
+
+        @Override
+        TagType type() {
+            return TagType.LONG;
+        }
+
+        @Override
+        int width() {
+            return 8;
+        }
+
+        @Override
+        boolean isFloating() {
+            return false;
+        }
+
+        @Override
+        long longAt(int index) {
+            return this.values.getLong(index);
+        }
+
+        @Override
+        double doubleAt(int index) {
+            return this.values.getLong(index);
+        }
+
+        @Override
+        Longs copy() {
+            return new Longs(this.values.clone());
+        }
+
+        @Override
+        void get(ByteBuffer buffer, int count) {
+            this.values.ensureCapacity(this.values.size() + count);
+            for (int i = 0; i < count; i++)
+                this.values.add(buffer.getLong());
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int from, int count) {
+            for (int i = from; i < from + count; i++)
+                buffer.putLong(this.values.getLong(i));
+        }
+
+        void setLong(int index, long value) {
+            this.values.set(index, value);
+        }
+
+        @Override
+        public LongTag get(int index) {
+            return new LongTag(null, this.values.getLong(index));
+        }
+
+        @Override
+        public LongTag set(int index, LongTag tag) {
+            return new LongTag(null, this.values.set(index, tag.longValue()));
+        }
+
+        @Override
+        public void add(int index, LongTag tag) {
+            this.values.add(index, tag.longValue());
+        }
+
+        @Override
+        public LongTag remove(int index) {
+            return new LongTag(null, this.values.removeLong(index));
+        }
+
+        @Override
+        public void clear() {
+            this.values.clear();
+        }
+
+        @Override
+        public int size() {
+            return this.values.size();
+        }
+    }
+
+    static final class Floats extends PrimitiveTagList<FloatTag> {
+        private final FloatArrayList values;
+
+        Floats(FloatArrayList values) {
+            this.values = values;
+        }
+
+        @Override
+        TagType type() {
+            return TagType.FLOAT;
+        }
+
+        @Override
+        int width() {
+            return 4;
+        }
+
+        @Override
+        boolean isFloating() {
+            return true;
+        }
+
+        @Override
+        long longAt(int index) {
+            return (long) this.values.getFloat(index);
+        }
+
+        @Override
+        double doubleAt(int index) {
+            return this.values.getFloat(index);
+        }
+
+        @Override
+        Floats copy() {
+            return new Floats(this.values.clone());
+        }
+
+        @Override
+        void get(ByteBuffer buffer, int count) {
+            this.values.ensureCapacity(this.values.size() + count);
+            for (int i = 0; i < count; i++)
+                this.values.add(buffer.getFloat());
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int from, int count) {
+            for (int i = from; i < from + count; i++)
+                buffer.putFloat(this.values.getFloat(i));
+        }
+
+        void setFloat(int index, float value) {
+            this.values.set(index, value);
+        }
+
+        @Override
+        public FloatTag get(int index) {
+            return new FloatTag(null, this.values.getFloat(index));
+        }
+
+        @Override
+        public FloatTag set(int index, FloatTag tag) {
+            return new FloatTag(null, this.values.set(index, tag.floatValue()));
+        }
+
+        @Override
+        public void add(int index, FloatTag tag) {
+            this.values.add(index, tag.floatValue());
+        }
+
+        @Override
+        public FloatTag remove(int index) {
+            return new FloatTag(null, this.values.removeFloat(index));
+        }
+
+        @Override
+        public void clear() {
+            this.values.clear();
+        }
+
+        @Override
+        public int size() {
+            return this.values.size();
+        }
+    }
+
+    static final class Doubles extends PrimitiveTagList<DoubleTag> {
+        private final DoubleArrayList values;
+
+        Doubles(DoubleArrayList values) {
+            this.values = values;
+        }
+
+        @Override
+        TagType type() {
+            return TagType.DOUBLE;
+        }
+
+        @Override
+        int width() {
+            return 8;
+        }
+
+        @Override
+        boolean isFloating() {
+            return true;
+        }
+
+        @Override
+        long longAt(int index) {
+            return (long) this.values.getDouble(index);
+        }
+
+        @Override
+        double doubleAt(int index) {
+            return this.values.getDouble(index);
+        }
+
+        @Override
+        Doubles copy() {
+            return new Doubles(this.values.clone());
+        }
+
+        @Override
+        void get(ByteBuffer buffer, int count) {
+            this.values.ensureCapacity(this.values.size() + count);
+            for (int i = 0; i < count; i++)
+                this.values.add(buffer.getDouble());
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int from, int count) {
+            for (int i = from; i < from + count; i++)
+                buffer.putDouble(this.values.getDouble(i));
+        }
+
+        void setDouble(int index, double value) {
+            this.values.set(index, value);
+        }
+
+        @Override
+        public DoubleTag get(int index) {
+            return new DoubleTag(null, this.values.getDouble(index));
+        }
+
+        @Override
+        public DoubleTag set(int index, DoubleTag tag) {
+            return new DoubleTag(null, this.values.set(index, tag.doubleValue()));
+        }
+
+        @Override
+        public void add(int index, DoubleTag tag) {
+            this.values.add(index, tag.doubleValue());
+        }
+
+        @Override
+        public DoubleTag remove(int index) {
+            return new DoubleTag(null, this.values.removeDouble(index));
+        }
+
+        @Override
+        public void clear() {
+            this.values.clear();
+        }
+
+        @Override
+        public int size() {
+            return this.values.size();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ro.nico.tag.nbt.utils;
+
+/**
+ * Interns the keys of the compound tags read, so the many chunks sharing a schema share their key strings instead of
+ * holding a copy each. The keys are cached in a fixed table of {@value #SLOTS} slots indexed by their hash, each key
+ * replacing the one in its slot, so keys seen once (data used as keys) can't grow the table nor keep the schema keys
+ * out of it: those are read over and over, and cached again as soon as they're replaced. Keys longer than
+ * {@value #MAX_KEY_LENGTH} characters are never interned.
+ * <p>
+ * The table is shared by the threads without locking: a slot written by two threads at once keeps one of the keys, which
+ * is fine since strings are immutable.
+ */
+public class KeyInterner {
+    private static final int SLOTS = 8192; // a power of two
+    private static final int MAX_KEY_LENGTH = 64;
+    private static final String[] KEYS = new String[SLOTS];
+
+    /**
+     * Returns the shared instance of a key.
+     *
+     * @param key the key.
+     * @return the shared key equal to it, or the key itself if it wasn't cached, or it's too long.
+     */
+    public static String intern(String key) {
+        if (key.length() > MAX_KEY_LENGTH)
+            return key;
+        int hash = key.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+        String interned = KEYS[slot];
+        if (interned != null && interned.equals(key))
+            return interned;
+        KEYS[slot] = key;
+        return key;
+    }
+}
@@ -10,10 +10,12 @@ import ro.nico.tag.wrapper.RegionPos;
 
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
@@ -21,16 +23,14 @@ public class CraftChunkRegister {
     private final CraftWorldRegister register;
     private final ChunkPos chunkId;
     private final AtomicReference<Status> status = new AtomicReference<>(Status.UNLOADED);
-    private final FutureTask<CompoundTag> loadTask;
+    private final CompletableFuture<CompoundTag> loadFuture = new CompletableFuture<>(); // completed once loaded
+    private final AtomicBoolean loadStarted = new AtomicBoolean();
+    private volatile CraftRegionRegister region; // pinned while the chunk is loaded, so it's saved without reopening it
+    private volatile boolean knownEmpty; // loaded without reading its region
 
     public CraftChunkRegister(CraftWorldRegister register, ChunkPos chunkId) {
         this.chunkId = chunkId;
         this.register = register;
-        this.loadTask = new FutureTask<>(() -> {
-            CompoundTag tag = register.getRegion(RegionPos.fromChunk(chunkId)).getChunk(chunkId);
-            this.status.set(Status.LOADED);
-            return tag;
-        });
     }
 
     public final ChunkPos getChunkId() {
@@ -42,12 +42,55 @@ public class CraftChunkRegister {
     }
 
     public final CompoundTag loadAndWait() throws ExecutionException, InterruptedException, TimeoutException {
-        return this.loadTask.get(30, TimeUnit.SECONDS);
+        return this.loadFuture.get(30, TimeUnit.SECONDS);
     }
 
+    /**
+     * Loads the chunk without blocking its chunk thread: the region data is read asynchronously, and only the
+     * decompression runs on the chunk thread.
+     */
     public final void load() {
         this.status.set(Status.LOADING);
-        CraftTagRegister.getChunkExecutor(this.chunkId.getWorkerThread(CraftTagRegister.getChunkThreads())).submit(this.loadTask);
+        if (!this.loadStarted.compareAndSet(false, true))
+            return;
+        Executor executor = CraftTagRegister.getChunkExecutor(this.chunkId.getWorkerThread(CraftTagRegister.getChunkThreads()));
+        CompletableFuture.supplyAsync(() -> this.register.pinRegion(RegionPos.fromChunk(this.chunkId, this.register.getRegionConfig().getRegionShift())), executor)
+                .thenCompose(region -> {
+                    this.region = region;
+                    return region.getChunkAsync(this.chunkId, executor);
+                })
+                .whenComplete((tag, ex) -> {
+                    if (ex != null) {
+                        this.loadFuture.completeExceptionally(ex);
+                        return;
+                    }
+                    this.status.set(Status.LOADED);
+                    this.loadFuture.complete(tag);
+                });
+    }
+
+    /**
+     * Loads the chunk as empty, without reading (nor pinning) its region.
+     * Only for chunks known to have no tags stored.
+     *
+     * @see CraftWorldRegister#isKnownEmpty(ChunkPos)
+     */
+    public final void loadEmpty() {
+        if (!this.loadStarted.compareAndSet(false, true))
+            return;
+        this.knownEmpty = true;
+        this.status.set(Status.LOADED);
+        this.loadFuture.complete(new CompoundTag());
+    }
+
+    /**
+     * Loads the chunk once a task is done, like the read-ahead of its region. The chunk is marked as loading now.
+     *
+     * @param task the task.
+     */
+    public final void loadAfter(CompletableFuture<?> task) {
+        this.status.set(Status.LOADING);
+        task.whenComplete((result, ex) -> this.load());
     }
 
     private void propagateTo(Set<Quartet<ChunkPos, Direction, PropagationType, Integer>> propagatedChunks, Set<ChunkPos> visitedChunks, PropagationType type, int distance, Direction... directions) {
@@ -116,10 +159,23 @@ public class CraftChunkRegister {
     public final void unloadAndSave() {
         if (this.status.get() == Status.UNLOADED)
             return; // hmm...
+        CraftRegionRegister region = this.region;
         try {
-            this.register.getRegion(RegionPos.fromChunk(this.chunkId)).setChunk(this.chunkId, this.loadTask.get());
+            CompoundTag tag = this.loadFuture.get();
+            if (this.knownEmpty && tag.isEmpty()) { // still nothing to store
+                this.status.set(Status.UNLOADED);
+                return;
+            }
+            if (region == null) // still loading, or loaded empty
+                region = this.register.getRegion(RegionPos.fromChunk(this.chunkId, this.register.getRegionConfig().getRegionShift()));
+            region.setChunk(this.chunkId, tag);
         } catch (InterruptedException | ExecutionException ex) {
             CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to unload/save chunk", ex);
+        } finally {
+            if (this.region != null) {
+                this.region.unpin();
+                this.region = null;
+            }
         }
         this.status.set(Status.UNLOADED);
     }
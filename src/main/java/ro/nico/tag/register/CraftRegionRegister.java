@@ -1,26 +1,46 @@
 package ro.nico.tag.register;
 
+import org.jetbrains.annotations.Nullable;
 import ro.nico.tag.CraftTagRegister;
+import ro.nico.tag.nbt.api.Tag;
+import ro.nico.tag.nbt.api.path.TagPath;
+import ro.nico.tag.nbt.api.visitor.TagVisitor;
 import ro.nico.tag.nbt.tags.collection.CompoundTag;
 import ro.nico.tag.util.RegionFile;
+import ro.nico.tag.util.RegionSnapshot;
+import ro.nico.tag.util.SectorAllocator;
 import ro.nico.tag.wrapper.ChunkPos;
 import ro.nico.tag.wrapper.RegionPos;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
 public class CraftRegionRegister {
+    private final CraftWorldRegister register;
     private final RegionPos regionId;
     private final AtomicReference<Status> status = new AtomicReference<>(Status.UNLOADED);
     private final FutureTask<RegionFile> loadTask;
+    private final AtomicInteger pins = new AtomicInteger(); // -1 once evicted from the region pool
+    private volatile long lastAccess = System.nanoTime();
 
     public CraftRegionRegister(CraftWorldRegister register, RegionPos regionId) {
+        this.register = register;
         this.regionId = regionId;
         this.loadTask = new FutureTask<>(() -> {
-            RegionFile region = new RegionFile(register.getWorldFolder().toPath(), this.regionId);
+            register.getRegionPool().awaitClosed(this.regionId); // the file of an evicted handle may still be locked
+            RegionFile region = new RegionFile(register.getWorldFolder().toPath(), this.regionId, register.getRegionConfig(), register.getJournal(), register.getDictionaries(), register.getCompressionPolicy());
+            register.putPresence(this.regionId, region.getIndex().getPresence());
+            RegionSnapshot snapshot = register.getSnapshot(this.regionId);
+            if (snapshot != null) // taken before the region was unloaded, its sectors are still pinned
+                region.attachSnapshot(snapshot);
             this.status.set(Status.LOADED);
             return region;
         });
@@ -39,24 +59,326 @@ public class CraftRegionRegister {
         CraftTagRegister.getRegionExecutor().submit(this.loadTask);
     }
 
+    /**
+     * Pins this region, so it isn't evicted from the region pool until it's unpinned.
+     *
+     * @return false if this region was already evicted, its world returns a new one.
+     */
+    public final boolean pin() {
+        while (true) {
+            int pins = this.pins.get();
+            if (pins < 0)
+                return false;
+            if (this.pins.compareAndSet(pins, pins + 1)) {
+                this.lastAccess = System.nanoTime();
+                return true;
+            }
+        }
+    }
+
+    public final void unpin() {
+        this.lastAccess = System.nanoTime();
+        this.pins.decrementAndGet();
+    }
+
+    /**
+     * Marks this region as evicted, if it isn't pinned nor loading. An evicted region can't be pinned anymore.
+     *
+     * @return true if the region can be unloaded.
+     */
+    final boolean tryEvict() {
+        return this.status.get() != Status.LOADING && this.pins.compareAndSet(0, -1);
+    }
+
+    final long getLastAccess() {
+        return this.lastAccess;
+    }
+
+    /**
+     * Returns the memory used by the index of the region file, or 0 if it isn't loaded.
+     */
+    final long getIndexBytes() {
+        if (this.status.get() != Status.LOADED)
+            return 0;
+        try {
+            return this.loadTask.get().getIndex().getAllocatedBytes();
+        } catch (InterruptedException | ExecutionException ex) {
+            return 0;
+        }
+    }
+
     public final CompoundTag getChunk(final ChunkPos chunkPos) {
-        if (this.status.get() == Status.UNLOADED)
-            this.load();
+        if (!this.pin()) // evicted in between, use the new handle
+            return this.register.getRegion(this.regionId).getChunk(chunkPos);
         try {
+            if (this.status.get() == Status.UNLOADED)
+                this.load();
             return this.loadTask.get().getChunkCompoundTag(chunkPos.getX(), chunkPos.getY(), chunkPos.getZ());
         } catch (InterruptedException | ExecutionException ex) {
             CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to get chunk in region", ex);
+        } finally {
+            this.unpin();
+        }
+        return null;
+    }
+
+    /**
+     * Reads a chunk without blocking the calling thread. The region is loaded by the region executor if needed.
+     *
+     * @param chunkPos the chunk position.
+     * @param executor the executor decompressing the chunk data.
+     * @return the chunk, or null if the region couldn't be loaded.
+     * @see RegionFile#getChunkCompoundTagAsync(int, int, int, Executor)
+     */
+    public final CompletableFuture<CompoundTag> getChunkAsync(final ChunkPos chunkPos, final Executor executor) {
+        if (!this.pin())
+            return this.register.getRegion(this.regionId).getChunkAsync(chunkPos, executor);
+        return this.loadAsync()
+                .thenCompose(region -> region.getChunkCompoundTagAsync(chunkPos.getX(), chunkPos.getY(), chunkPos.getZ(), executor))
+                .exceptionally(ex -> {
+                    CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to get chunk in region", ex);
+                    return null;
+                })
+                .whenComplete((chunk, ex) -> this.unpin());
+    }
+
+    private CompletableFuture<RegionFile> loadAsync() {
+        if (this.loadTask.isDone()) {
+            try {
+                return CompletableFuture.completedFuture(this.loadTask.get());
+            } catch (InterruptedException | ExecutionException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+        this.status.compareAndSet(Status.UNLOADED, Status.LOADING);
+        return CompletableFuture.supplyAsync(() -> {
+            this.loadTask.run(); // does nothing if it already ran, and if it's running it's waited below
+            try {
+                return this.loadTask.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new CompletionException(ex);
+            }
+        }, CraftTagRegister.getRegionExecutor());
+    }
+
+    /**
+     * Reads a chunk as a stream of events, without building its tags, loading the region if needed.
+     *
+     * @param chunkPos the chunk position.
+     * @param visitor  the visitor.
+     * @return false if the chunk is empty, couldn't be read, or the visitor stopped the reading.
+     * @see RegionFile#visitChunk(int, int, int, TagVisitor)
+     */
+    public final boolean visitChunk(final ChunkPos chunkPos, final TagVisitor visitor) {
+        if (!this.pin())
+            return this.register.getRegion(this.regionId).visitChunk(chunkPos, visitor);
+        try {
+            if (this.status.get() == Status.UNLOADED)
+                this.load();
+            return this.loadTask.get().visitChunk(chunkPos.getX(), chunkPos.getY(), chunkPos.getZ(), visitor);
+        } catch (InterruptedException | ExecutionException | IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to visit chunk in region", ex);
+        } finally {
+            this.unpin();
+        }
+        return false;
+    }
+
+    /**
+     * Finds a tag in a chunk, decoding nothing else, loading the region if needed.
+     *
+     * @param chunkPos the chunk position.
+     * @param path     the path of the tag in the chunk.
+     * @return the tag, or null if the chunk is empty, couldn't be read, or doesn't have it.
+     * @see RegionFile#queryChunk(int, int, int, TagPath)
+     */
+    public final @Nullable Tag queryChunk(final ChunkPos chunkPos, final TagPath path) {
+        if (!this.pin())
+            return this.register.getRegion(this.regionId).queryChunk(chunkPos, path);
+        try {
+            if (this.status.get() == Status.UNLOADED)
+                this.load();
+            return this.loadTask.get().queryChunk(chunkPos.getX(), chunkPos.getY(), chunkPos.getZ(), path);
+        } catch (InterruptedException | ExecutionException | IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to query chunk in region", ex);
+        } finally {
+            this.unpin();
         }
         return null;
     }
 
     public final void setChunk(final ChunkPos chunkPos, CompoundTag chunk) {
-        if (this.status.get() == Status.UNLOADED)
-            this.load();
+        if (!this.pin()) {
+            this.register.getRegion(this.regionId).setChunk(chunkPos, chunk);
+            return;
+        }
         try {
+            if (this.status.get() == Status.UNLOADED)
+                this.load();
             this.loadTask.get().putChunkCompoundTag(chunkPos.getX(), chunkPos.getY(), chunkPos.getZ(), chunk);
         } catch (InterruptedException | ExecutionException ex) {
             CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to put chunk in region", ex);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    /**
+     * Reads ahead the data of chunks about to be loaded from this region, loading it if needed.
+     *
+     * @param chunks the positions of the chunks.
+     * @see RegionFile#readAhead(Collection)
+     */
+    public final void readAhead(final Collection<ChunkPos> chunks) {
+        if (!this.pin()) {
+            this.register.getRegion(this.regionId).readAhead(chunks);
+            return;
+        }
+        try {
+            if (this.status.get() == Status.UNLOADED) {
+                this.status.set(Status.LOADING);
+                this.loadTask.run(); // on this thread, read-aheads run on the region executor and would wait for it
+            }
+            this.loadTask.get().readAhead(chunks);
+        } catch (InterruptedException | ExecutionException | IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to read ahead chunks in region", ex);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    /**
+     * Writes the pending (batched) writes of the region file, if the region is loaded.
+     */
+    public final void flush() {
+        if (this.status.get() != Status.LOADED || !this.pin())
+            return;
+        try {
+            this.loadTask.get().flush();
+        } catch (InterruptedException | ExecutionException | IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to flush region", ex);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    /**
+     * Collects the uncompressed data of the chunks of this region, to be used as dictionary training samples.
+     */
+    public final void collectSamples(final Collection<byte[]> samples, final int maxSamples) {
+        if (!this.pin()) {
+            this.register.getRegion(this.regionId).collectSamples(samples, maxSamples);
+            return;
+        }
+        try {
+            if (this.status.get() == Status.UNLOADED)
+                this.load();
+            this.loadTask.get().collectSamples(samples, maxSamples);
+        } catch (InterruptedException | ExecutionException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to sample chunks in region", ex);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    /**
+     * Flushes the pending writes of the region file and forces them to the disk, if the region is loaded.
+     */
+    public final void force() {
+        if (this.status.get() != Status.LOADED || !this.pin())
+            return;
+        try {
+            this.loadTask.get().force();
+        } catch (InterruptedException | ExecutionException | IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to force region", ex);
+        } finally {
+            this.unpin();
+        }
+    }
+
+    /**
+     * Compacts the region file if it's loaded and its ratio of free sectors reached the threshold.
+     *
+     * @param threshold      the ratio of free sectors (from 0 to 1) from which the file is compacted.
+     * @param bytesPerSecond the I/O budget of the compaction, in bytes moved per second.
+     * @return the result of the compaction, or null if the region wasn't compacted.
+     */
+    @Nullable
+    public final RegionFile.CompactionResult compact(final double threshold, final long bytesPerSecond) {
+        if (this.status.get() != Status.LOADED || !this.pin())
+            return null;
+        try {
+            RegionFile region = this.loadTask.get();
+            SectorAllocator allocator = region.getSectorAllocator();
+            if (allocator.getTotalSectors() == 0 || (double) allocator.getFreeSectors() / allocator.getTotalSectors() < threshold)
+                return null;
+            return region.compact(bytesPerSecond);
+        } catch (InterruptedException | ExecutionException | IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to compact region", ex);
+        } finally {
+            this.unpin();
+        }
+        return null;
+    }
+
+    /**
+     * Verifies every chunk of the region file, loading it if needed.
+     *
+     * @param quarantine true to quarantine corrupted chunks.
+     * @return the result of the verification, or null if the region file couldn't be loaded.
+     * @see RegionFile#verify(boolean)
+     */
+    @Nullable
+    public final RegionFile.VerificationResult verify(final boolean quarantine) {
+        if (!this.pin())
+            return this.register.getRegion(this.regionId).verify(quarantine);
+        try {
+            if (this.status.get() == Status.UNLOADED)
+                this.load();
+            return this.loadTask.get().verify(quarantine);
+        } catch (InterruptedException | ExecutionException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to verify region", ex);
+        } finally {
+            this.unpin();
+        }
+        return null;
+    }
+
+    /**
+     * Takes a snapshot of the chunks of the region file written since a given time, loading it if needed.
+     *
+     * @param since the time, in seconds since the epoch, from which chunks are captured.
+     * @return the snapshot, or null if the region file couldn't be loaded.
+     * @see RegionFile#snapshot(long)
+     */
+    @Nullable
+    public final RegionSnapshot snapshot(final long since) {
+        if (!this.pin())
+            return this.register.getRegion(this.regionId).snapshot(since);
+        try {
+            if (this.status.get() == Status.UNLOADED)
+                this.load();
+            return this.loadTask.get().snapshot(since);
+        } catch (InterruptedException | ExecutionException | IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to snapshot region", ex);
+        } finally {
+            this.unpin();
+        }
+        return null;
+    }
+
+    /**
+     * Releases the snapshot attached to the region file, if the region is loaded.
+     */
+    public final void releaseSnapshot() {
+        if (this.status.get() != Status.LOADED || !this.pin())
+            return;
+        try {
+            this.loadTask.get().releaseSnapshot();
+        } catch (InterruptedException | ExecutionException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to release region snapshot", ex);
+        } finally {
+            this.unpin();
         }
     }
 
@@ -68,6 +390,7 @@ public class CraftRegionRegister {
         } catch (InterruptedException | ExecutionException | IOException ex) {
             CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to unload/save region", ex);
         }
+        this.register.retainPresence(this.regionId);
         this.status.set(Status.UNLOADED);
     }
 
@@ -3,6 +3,7 @@ package ro.nico.tag.register;
 import com.google.common.cache.*;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.github.NicoNekoDev.SimpleTuples.Quartet;
+import org.jetbrains.annotations.Nullable;
 import ro.nico.tag.CraftTagRegister;
 import ro.nico.tag.util.*;
 import ro.nico.tag.wrapper.ChunkPos;
@@ -10,34 +11,50 @@ import ro.nico.tag.wrapper.RegionPos;
 import ro.nico.tag.wrapper.WorldId;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 public class CraftWorldRegister {
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final String LATEST_SNAPSHOT_FILE = "latest";
+
     private final WorldId worldId;
     private final File worldDataFolder;
+    private final RegionConfig regionConfig = new RegionConfig();
+    private final CompressionPolicy compressionPolicy = new CompressionPolicy(this.regionConfig);
+    private volatile RegionJournal journal;
+    private volatile ZstdDictionaryStore dictionaries;
     private final SelfExpiringMap<ChunkPos, ChunkTicket> chunkTickets;
-    private final LoadingCache<RegionPos, CraftRegionRegister> regions;
+    private final RegionPool regions;
     private final LoadingCache<ChunkPos, CraftChunkRegister> chunks;
+    private final Map<RegionPos, RegionSnapshot> snapshots = new ConcurrentHashMap<>(); // outlive the unload of their region
+    private final Map<RegionPos, RegionPresence> presence = new ConcurrentHashMap<>(); // of the loaded regions
+    private final Map<RegionPos, RegionPresence> retainedPresence = new LinkedHashMap<>(16, 0.75f, true) { // of closed regions, guarded by itself
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RegionPos, RegionPresence> eldest) {
+            return this.size() > CraftWorldRegister.this.regionConfig.getMaxRetainedPresences();
+        }
+    };
+    private final Set<RegionPos> regionFiles = ConcurrentHashMap.newKeySet(); // the regions having a file
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(5, new ThreadFactoryBuilder().setNameFormat("World-Scheduler-%d").build());
 
     public CraftWorldRegister(WorldId worldId) {
         this.worldId = worldId;
         this.worldDataFolder = new File("." + File.separator + this.worldId.getName() + File.separator + "tags");
         this.worldDataFolder.mkdirs();
-        this.regions = CacheBuilder.newBuilder()
-                .expireAfterAccess(45, TimeUnit.SECONDS)
-                .removalListener((RemovalListener<RegionPos, CraftRegionRegister>) notif -> {
-                    if (notif.getCause() == RemovalCause.EXPIRED && notif.getValue() != null)
-                        notif.getValue().unloadAndSave();
-                })
-                .build(new CacheLoader<>() {
-                    @Override
-                    public CraftRegionRegister load(RegionPos regionPos) {
-                        return new CraftRegionRegister(CraftWorldRegister.this, regionPos);
-                    }
-                });
+        File[] files = this.worldDataFolder.listFiles();
+        if (files != null)
+            for (File file : files) {
+                RegionPos regionPos = RegionFile.getRegionPos(file);
+                if (regionPos != null)
+                    this.regionFiles.add(regionPos);
+            }
+        this.regions = new RegionPool(this.regionConfig, regionPos -> new CraftRegionRegister(this, regionPos));
         this.chunks = CacheBuilder.newBuilder()
                 .expireAfterAccess(10, TimeUnit.SECONDS)
                 .removalListener((RemovalListener<ChunkPos, CraftChunkRegister>) notif -> {
@@ -52,6 +69,11 @@ public class CraftWorldRegister {
                 });
         this.chunkTickets = new SelfExpiringMap<>(this.scheduler);
         this.scheduler.scheduleAtFixedRate(this::propagationTick, 0, 1, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::flushRegions, 1, 1, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::checkpointJournal, 5, 5, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::compactRegions, 1, 1, TimeUnit.MINUTES);
+        if (new File(this.worldDataFolder, JOURNAL_FILE).length() > 0)
+            this.recoverJournal(); // a journal left behind means the server didn't stop cleanly
     }
 
     public final WorldId getWorldId() {
@@ -62,6 +84,101 @@ public class CraftWorldRegister {
         return this.worldDataFolder;
     }
 
+    public final RegionConfig getRegionConfig() {
+        return this.regionConfig;
+    }
+
+    /**
+     * Returns the journal of this world, opening it if journaling is enabled.
+     *
+     * @return the journal, or null if journaling is disabled.
+     */
+    @Nullable
+    public final synchronized RegionJournal getJournal() {
+        if (this.journal == null && this.regionConfig.isJournal()) {
+            try {
+                this.journal = new RegionJournal(new File(this.worldDataFolder, JOURNAL_FILE));
+            } catch (IOException ex) {
+                CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to open the journal, chunks will be saved without it", ex);
+                this.regionConfig.setJournal(false);
+            }
+        }
+        return this.journal;
+    }
+
+    /**
+     * Returns the compression dictionaries of this world.
+     *
+     * @return the dictionaries, or null if dictionary compression is disabled.
+     */
+    @Nullable
+    public final synchronized ZstdDictionaryStore getDictionaries() {
+        if (!this.regionConfig.isDictionaryCompression())
+            return null;
+        if (this.dictionaries == null)
+            this.dictionaries = new ZstdDictionaryStore(new File(this.worldDataFolder, ZstdDictionaryStore.DIRECTORY));
+        return this.dictionaries;
+    }
+
+    public final CompressionPolicy getCompressionPolicy() {
+        return this.compressionPolicy;
+    }
+
+    public final CompressionPolicy.Metrics getCompressionMetrics() {
+        return this.compressionPolicy.getMetrics();
+    }
+
+    /**
+     * Trains a compression dictionary from a sample of the chunks stored in this world, and makes it the one used
+     * for new writes. Chunks are recompressed with it the next time they're saved.
+     *
+     * @param maxSamples the maximum number of chunks to sample.
+     * @return the trained dictionary.
+     * @throws IOException if the dictionary couldn't be trained.
+     */
+    public final ZstdDictionaryStore.Dictionary trainCompressionDictionary(int maxSamples) throws IOException {
+        ZstdDictionaryStore dictionaries = this.getDictionaries();
+        if (dictionaries == null)
+            throw new IOException("Dictionary compression is disabled");
+        List<byte[]> samples = new ArrayList<>();
+        File[] files = this.worldDataFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                RegionPos regionPos = RegionFile.getRegionPos(file);
+                if (regionPos != null)
+                    this.getRegion(regionPos).collectSamples(samples, maxSamples);
+                if (samples.size() >= maxSamples)
+                    break;
+            }
+        }
+        return dictionaries.train(samples, this.regionConfig.getDictionarySize());
+    }
+
+    private synchronized void recoverJournal() {
+        try {
+            this.journal = new RegionJournal(new File(this.worldDataFolder, JOURNAL_FILE));
+            // loading a region replays its records
+            for (RegionPos regionPos : this.journal.getPendingRecovery())
+                this.getRegion(regionPos).load();
+        } catch (IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to recover the journal", ex);
+        }
+    }
+
+    public void checkpointJournal() {
+        RegionJournal journal = this.journal;
+        if (journal == null || journal.size() < this.regionConfig.getJournalCheckpointBytes())
+            return;
+        try {
+            journal.checkpoint(() -> {
+                for (CraftRegionRegister region : this.regions.values())
+                    region.force();
+            });
+        } catch (IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to checkpoint the journal", ex);
+        }
+    }
+
     public void setChunkTicket(ChunkPos chunkId, TicketType ticketType) {
         this.setChunkTicket(chunkId, ticketType, ticketType.getDefaultDistance());
     }
@@ -104,7 +221,72 @@ public class CraftWorldRegister {
     }
 
     public CraftRegionRegister getRegion(RegionPos regionPos) {
-        return this.regions.getUnchecked(regionPos);
+        return this.regions.get(regionPos);
+    }
+
+    /**
+     * Returns a pinned region, which stays open until it's unpinned.
+     *
+     * @param regionPos the region position.
+     * @return the pinned region.
+     * @see CraftRegionRegister#pin()
+     */
+    public CraftRegionRegister pinRegion(RegionPos regionPos) {
+        while (true) {
+            CraftRegionRegister region = this.regions.get(regionPos);
+            if (region.pin())
+                return region;
+        }
+    }
+
+    final void putPresence(RegionPos regionPos, RegionPresence presence) {
+        this.regionFiles.add(regionPos); // created by the region if it didn't exist
+        this.presence.put(regionPos, presence);
+        synchronized (this.retainedPresence) {
+            this.retainedPresence.remove(regionPos);
+        }
+    }
+
+    /**
+     * Keeps the presence of a closed region, until it's loaded again or forgotten to make room for others. A region
+     * without chunks keeps {@link RegionPresence#ABSENT} instead of its bitmap.
+     */
+    final void retainPresence(RegionPos regionPos) {
+        RegionPresence presence = this.presence.remove(regionPos);
+        if (presence == null)
+            return;
+        synchronized (this.retainedPresence) {
+            this.retainedPresence.put(regionPos, presence.count() == 0 ? RegionPresence.ABSENT : presence);
+        }
+    }
+
+    /**
+     * Returns whether a chunk is known to have no tags stored, without loading its region. Regions without a file
+     * are known to be empty, the others while they're loaded, and after they're closed as long as they're remembered
+     * (see {@link RegionConfig#getMaxRetainedPresences()}).
+     *
+     * @param chunkId the chunk position.
+     * @return true if the chunk is known to be empty, false if it has tags or it's unknown.
+     */
+    public final boolean isKnownEmpty(ChunkPos chunkId) {
+        RegionPos regionPos = RegionPos.fromChunk(chunkId, this.regionConfig.getRegionShift());
+        RegionPresence presence = this.presence.get(regionPos);
+        if (presence == null) {
+            synchronized (this.retainedPresence) {
+                presence = this.retainedPresence.get(regionPos);
+            }
+            if (presence == null)
+                return !this.regionFiles.contains(regionPos); // with a file, known once the region is loaded
+        }
+        return !presence.isPresent(chunkId);
+    }
+
+    public final RegionPool getRegionPool() {
+        return this.regions;
+    }
+
+    public final RegionPool.Metrics getRegionPoolMetrics() {
+        return this.regions.getMetrics();
     }
 
     // prop = propagation
@@ -117,6 +299,7 @@ public class CraftWorldRegister {
                 this.chunkTickets.values().stream()
                         .map((ticket) -> Quartet.of(ticket.chunkId(), Direction.CENTER, PropagationType.CENTER, ticket.distance()))
                         .collect(Collectors.toCollection(LinkedList::new)); // queue, allow addition and removal while iterating
+        Map<RegionPos, List<CraftChunkRegister>> chunksToLoad = new HashMap<>();
         Quartet<ChunkPos, Direction, PropagationType, Integer> next = queue.poll();
         while (next != null) { // never null if we keep adding chunks
             ChunkPos chunkId = next.getFirstValue();
@@ -128,19 +311,146 @@ public class CraftWorldRegister {
                 switch (craftChunkRegister.getStatus()) {
                     case LOADED ->
                             queue.addAll(craftChunkRegister.propagate(visitedChunks, direction, propagationType, distance));
-                    case UNLOADED -> craftChunkRegister.load();
+                    case UNLOADED -> {
+                        if (this.isKnownEmpty(chunkId)) { // nothing to read, no need for its region
+                            craftChunkRegister.loadEmpty();
+                            queue.addAll(craftChunkRegister.propagate(visitedChunks, direction, propagationType, distance));
+                        } else
+                            chunksToLoad.computeIfAbsent(RegionPos.fromChunk(chunkId, this.regionConfig.getRegionShift()), regionPos -> new ArrayList<>()).add(craftChunkRegister);
+                    }
                 }
             }
             next = queue.poll();
         }
+        chunksToLoad.forEach(this::loadChunks);
+    }
+
+    /**
+     * Loads chunks of the same region. When there are several, their data is read ahead first, in a few coalesced
+     * reads, and they're decompressed in parallel by the chunk threads.
+     */
+    private void loadChunks(RegionPos regionPos, List<CraftChunkRegister> chunks) {
+        if (chunks.size() == 1) {
+            chunks.getFirst().load();
+            return;
+        }
+        List<ChunkPos> positions = chunks.stream().map(CraftChunkRegister::getChunkId).toList();
+        CompletableFuture<Void> readAhead = CompletableFuture.runAsync(() -> this.getRegion(regionPos).readAhead(positions), CraftTagRegister.getRegionExecutor());
+        for (CraftChunkRegister chunk : chunks)
+            chunk.loadAfter(readAhead);
+    }
+
+    public void flushRegions() {
+        for (CraftRegionRegister region : this.regions.values())
+            region.flush();
+        this.regions.cleanUp(); // closes the idle regions
+    }
+
+    /**
+     * Compacts the loaded regions with too many free sectors, one at a time, if compaction is enabled.
+     */
+    public void compactRegions() {
+        if (!this.regionConfig.isCompaction())
+            return;
+        for (CraftRegionRegister region : this.regions.values()) {
+            RegionFile.CompactionResult result = region.compact(this.regionConfig.getCompactionThreshold(), this.regionConfig.getCompactionBytesPerSecond());
+            if (result != null && result.reclaimedBytes() > 0)
+                CraftTagRegister.getLogger().info("Compacted region " + region.getRegionId() + ": moved " + result.movedChunks() + " chunks, reclaimed " + result.reclaimedBytes() + " bytes");
+        }
+    }
+
+    /**
+     * Verifies every chunk of every region file of this world, several region files at a time.
+     *
+     * @param threads    the number of region files verified at the same time.
+     * @param quarantine true to quarantine corrupted chunks.
+     * @return the result of each region file.
+     * @throws InterruptedException if interrupted while waiting for the verification.
+     * @see RegionFile#verify(boolean)
+     */
+    public final List<RegionFile.VerificationResult> verifyRegions(int threads, boolean quarantine) throws InterruptedException {
+        return RegionVerifier.verify(this.worldDataFolder, threads, regionPos -> this.getRegion(regionPos).verify(quarantine));
+    }
+
+    /**
+     * Returns the snapshot of a region being written by {@link #snapshot(File)}.
+     *
+     * @param regionPos the region position.
+     * @return the snapshot, or null if there's none.
+     */
+    @Nullable
+    public final RegionSnapshot getSnapshot(RegionPos regionPos) {
+        return this.snapshots.get(regionPos);
+    }
+
+    /**
+     * Takes an incremental snapshot of the tags of this world, while it keeps being written.
+     * <p>
+     * Every region file is captured first, then the captured chunks are written, one region at a time, to a new
+     * directory of the backup directory named after the snapshot time. Only the chunks written since the previous
+     * snapshot in the same backup directory are captured (every chunk for the first one), along with the chunks
+     * present in each region, so deleted chunks are known when the snapshots are restored in order.
+     *
+     * @param backupDirectory the backup directory.
+     * @return the directory of the snapshot.
+     * @throws IOException if any I/O error occurs.
+     */
+    public final synchronized File snapshot(File backupDirectory) throws IOException {
+        File latestFile = new File(backupDirectory, LATEST_SNAPSHOT_FILE);
+        long since = 0;
+        if (latestFile.exists()) {
+            try {
+                since = Long.parseLong(Files.readString(latestFile.toPath(), StandardCharsets.UTF_8).trim());
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid latest snapshot time in " + latestFile, ex);
+            }
+        }
+        long taken = System.currentTimeMillis() / 1000;
+        File directory = new File(backupDirectory, Long.toString(taken));
+        Files.createDirectories(directory.toPath());
+        try {
+            File[] files = this.worldDataFolder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    RegionPos regionPos = RegionFile.getRegionPos(file);
+                    if (regionPos == null)
+                        continue;
+                    RegionSnapshot snapshot = this.getRegion(regionPos).snapshot(since);
+                    if (snapshot == null)
+                        throw new IOException("Failed to snapshot region " + regionPos);
+                    this.snapshots.put(regionPos, snapshot);
+                }
+            }
+            int chunks = 0;
+            long bytes = 0;
+            for (RegionSnapshot snapshot : this.snapshots.values()) {
+                bytes += snapshot.writeTo(directory);
+                chunks += snapshot.size();
+            }
+            Files.writeString(latestFile.toPath(), Long.toString(taken), StandardCharsets.UTF_8);
+            CraftTagRegister.getLogger().info("Snapshot of " + this.worldId.getName() + " written to " + directory + ": " + chunks + " chunks from " + this.snapshots.size() + " regions, " + bytes + " bytes");
+            return directory;
+        } finally {
+            List<RegionPos> regions = new ArrayList<>(this.snapshots.keySet());
+            this.snapshots.clear(); // regions loaded from now on don't attach them anymore
+            for (RegionPos regionPos : regions) {
+                CraftRegionRegister region = this.regions.getIfPresent(regionPos);
+                if (region != null)
+                    region.releaseSnapshot();
+            }
+        }
     }
 
     public final void unloadAndSave() {
         try {
             this.scheduler.shutdown();
             this.scheduler.awaitTermination(30, TimeUnit.SECONDS);
+            if (this.journal != null)
+                this.journal.close();
         } catch (InterruptedException e) {
             throw new IllegalStateException("Failed to unload and save the world due to timeout!");
+        } catch (IOException e) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to close the journal", e);
         }
     }
 
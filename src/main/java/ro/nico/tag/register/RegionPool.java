@@ -0,0 +1,177 @@
+package ro.nico.tag.register;
+
+import org.jetbrains.annotations.Nullable;
+import ro.nico.tag.CraftTagRegister;
+import ro.nico.tag.util.RegionConfig;
+import ro.nico.tag.wrapper.RegionPos;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+/**
+ * The open regions of a world, bounded by the number of open region files and by the memory of their indexes.
+ * <p>
+ * Once a bound is exceeded, regions are evicted (unloaded and saved) least recently used first. Regions not used for
+ * the idle time are evicted by {@link #cleanUp()}. Pinned regions (see {@link CraftRegionRegister#pin()}) and loading
+ * regions are never evicted, so the bounds can be exceeded while they're all in use.
+ * <p>
+ * Evicted regions are closed outside the pool lock. They're marked as closing while the lock is still held, so a region
+ * opened again while its previous handle is still closing waits for it, see {@link #awaitClosed(RegionPos)}.
+ */
+public class RegionPool {
+    private final RegionConfig config;
+    private final Function<RegionPos, CraftRegionRegister> factory;
+    private final LinkedHashMap<RegionPos, CraftRegionRegister> regions = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private final Map<RegionPos, CompletableFuture<Void>> closing = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    public RegionPool(RegionConfig config, Function<RegionPos, CraftRegionRegister> factory) {
+        this.config = config;
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the region at a position, creating it (unloaded) if it isn't in the pool.
+     * Creating a region may evict others.
+     *
+     * @param regionPos the region position.
+     * @return the region.
+     */
+    public CraftRegionRegister get(RegionPos regionPos) {
+        CraftRegionRegister region;
+        List<CraftRegionRegister> evicted = List.of();
+        synchronized (this) {
+            region = this.regions.get(regionPos);
+            if (region != null) {
+                this.hits.increment();
+                return region;
+            }
+            this.misses.increment();
+            region = this.factory.apply(regionPos);
+            this.regions.put(regionPos, region);
+            evicted = this.evict(false);
+        }
+        this.close(evicted);
+        return region;
+    }
+
+    /**
+     * Returns the region at a position, if it's in the pool.
+     *
+     * @param regionPos the region position.
+     * @return the region, or null if it isn't in the pool.
+     */
+    @Nullable
+    public synchronized CraftRegionRegister getIfPresent(RegionPos regionPos) {
+        return this.regions.get(regionPos);
+    }
+
+    /**
+     * Returns the regions of the pool.
+     *
+     * @return a copy of the regions of the pool.
+     */
+    public synchronized List<CraftRegionRegister> values() {
+        return new ArrayList<>(this.regions.values());
+    }
+
+    /**
+     * Evicts the idle regions, and the least recently used ones while a bound is exceeded.
+     */
+    public void cleanUp() {
+        List<CraftRegionRegister> evicted;
+        synchronized (this) {
+            evicted = this.evict(true);
+        }
+        this.close(evicted);
+    }
+
+    /**
+     * Waits for the previous handle of a region to be closed, if it's being evicted, so its file can be opened again.
+     *
+     * @param regionPos the region position.
+     */
+    public void awaitClosed(RegionPos regionPos) {
+        CompletableFuture<Void> closing = this.closing.get(regionPos);
+        if (closing != null)
+            closing.join();
+    }
+
+    public Metrics getMetrics() {
+        long indexBytes = 0;
+        int openRegions;
+        synchronized (this) {
+            for (CraftRegionRegister region : this.regions.values())
+                indexBytes += region.getIndexBytes();
+            openRegions = this.regions.size();
+        }
+        return new Metrics(this.hits.sum(), this.misses.sum(), this.evictions.sum(), openRegions, indexBytes);
+    }
+
+    private List<CraftRegionRegister> evict(boolean idle) {
+        int maxOpenRegions = this.config.getMaxOpenRegions();
+        long maxIndexBytes = this.config.getMaxRegionIndexBytes();
+        long idleNanos = TimeUnit.SECONDS.toNanos(this.config.getRegionIdleSeconds());
+        long indexBytes = 0;
+        for (CraftRegionRegister region : this.regions.values())
+            indexBytes += region.getIndexBytes();
+        long now = System.nanoTime();
+        List<CraftRegionRegister> evicted = new ArrayList<>();
+        Iterator<CraftRegionRegister> iterator = this.regions.values().iterator();
+        while (iterator.hasNext()) {
+            CraftRegionRegister region = iterator.next();
+            boolean overBounds = this.regions.size() > maxOpenRegions || indexBytes > maxIndexBytes;
+            boolean expired = idle && now - region.getLastAccess() > idleNanos;
+            if (!overBounds && !expired) {
+                if (!idle)
+                    break; // every bound is met, and the next regions were used more recently
+                continue;
+            }
+            long regionIndexBytes = region.getIndexBytes();
+            if (!region.tryEvict())
+                continue; // pinned or loading
+            iterator.remove();
+            // registered before the pool lock is released, so a new handle of the region waits for this one to close
+            this.closing.put(region.getRegionId(), new CompletableFuture<>());
+            indexBytes -= regionIndexBytes;
+            evicted.add(region);
+            this.evictions.increment();
+        }
+        return evicted;
+    }
+
+    private void close(List<CraftRegionRegister> evicted) {
+        for (CraftRegionRegister region : evicted) {
+            CompletableFuture<Void> closed = this.closing.get(region.getRegionId()); // registered by evict
+            try {
+                region.unloadAndSave();
+            } catch (RuntimeException ex) { // the next regions must still be closed, or their new handles would wait forever
+                CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to unload/save region", ex);
+            } finally {
+                this.closing.remove(region.getRegionId(), closed);
+                closed.complete(null);
+            }
+        }
+    }
+
+    /**
+     * The metrics of a region pool.
+     *
+     * @param hits        the number of lookups of a region already in the pool.
+     * @param misses      the number of lookups that created a region.
+     * @param evictions   the number of evicted regions.
+     * @param openRegions the number of regions in the pool.
+     * @param indexBytes  the memory used by the indexes of the loaded regions, in bytes.
+     */
+    public record Metrics(long hits, long misses, long evictions, int openRegions, long indexBytes) {
+        public double hitRate() {
+            long lookups = this.hits + this.misses;
+            return lookups == 0 ? 1 : (double) this.hits / lookups;
+        }
+    }
+}
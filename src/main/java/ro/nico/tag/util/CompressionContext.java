@@ -0,0 +1,466 @@
+package ro.nico.tag.util;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.jetbrains.annotations.Nullable;
+import ro.nico.tag.nbt.tags.collection.CompoundTag;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression state of a thread: native Zstd contexts, zlib deflater and inflater, and the byte arrays chunk data
+ * is serialized, compressed and decompressed into. Everything is reused from one chunk to the next, so saving and
+ * loading chunks with Zstd, zlib or no compression doesn't allocate once the arrays are large enough.
+ * <p>
+ * The buffers returned by {@link #compress} and {@link #decompress} belong to the context: they're only valid until
+ * the next call on the same thread. Chunks read from a mapping are decoded in place, without being copied first, and
+ * large ones (external chunks) are decompressed as a stream instead, which must be closed.
+ */
+public final class CompressionContext {
+    private static final ThreadLocal<CompressionContext> CONTEXTS = ThreadLocal.withInitial(CompressionContext::new);
+    static final int ZSTD_LEVEL = 3;
+    private static final int LZ4_BLOCK_SIZE = 64 * 1024;
+    private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024; // larger buffers are dropped, instead of being kept by the thread
+
+    private final ZstdCompressCtx zstdCompressor = new ZstdCompressCtx().setLevel(ZSTD_LEVEL).setContentSize(true);
+    private final ZstdCompressCtx zstdDictionaryCompressor = new ZstdCompressCtx().setContentSize(true);
+    private final ZstdDecompressCtx zstdDecompressor = new ZstdDecompressCtx();
+    private final ZstdDecompressCtx zstdDictionaryDecompressor = new ZstdDecompressCtx();
+    private int compressorDictionaryId, decompressorDictionaryId; // dictionary loaded in the dictionary contexts, 0 if none
+    private int compressorLevel = ZSTD_LEVEL, dictionaryCompressorLevel = ZSTD_LEVEL;
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+
+    private final FastByteArrayOutputStream serialized = new FastByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private final DataOutputStream serializedOutput = new DataOutputStream(this.serialized);
+    private final FastByteArrayOutputStream compressed = new FastByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private byte[] source = new byte[INITIAL_BUFFER_SIZE]; // copy of compressed data Zstd can't read in place
+    private ByteBuffer directDecompressed; // output of Zstd decoding native memory, allocated on first use
+    private byte[] decompressed = new byte[INITIAL_BUFFER_SIZE];
+    private final FastByteArrayInputStream decompressedInput = new FastByteArrayInputStream(this.decompressed, 0, 0);
+    private final DataInputStream decompressedData = new DataInputStream(this.decompressedInput);
+
+    private CompressionContext() {
+    }
+
+    /**
+     * Returns the compression context of the current thread.
+     *
+     * @return the compression context of the current thread.
+     */
+    public static CompressionContext get() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Serializes and compresses a compound tag, as it is stored in a region file: the compression type, the dictionary
+     * ID (only for {@link RegionFile.CompressionType#ZSTD_DICT}) and the compressed data.
+     *
+     * @param compoundTag the compound tag.
+     * @param compression the compression type.
+     * @param dictionary  the dictionary used by {@link RegionFile.CompressionType#ZSTD_DICT}, falls back to
+     *                    {@link RegionFile.CompressionType#ZSTD} if null.
+     * @return the chunk data, valid until the next call on this thread.
+     * @throws IOException if the compound tag couldn't be serialized or compressed.
+     */
+    public ByteBuffer compress(CompoundTag compoundTag, RegionFile.CompressionType compression, @Nullable ZstdDictionaryStore.Dictionary dictionary) throws IOException {
+        this.serialize(compoundTag);
+        return this.compressSerialized(compression, ZSTD_LEVEL, dictionary);
+    }
+
+    /**
+     * Serializes a compound tag, to be compressed by {@link #compressSerialized}.
+     *
+     * @param compoundTag the compound tag.
+     * @return the serialized length.
+     * @throws IOException if the compound tag couldn't be serialized.
+     */
+    public int serialize(CompoundTag compoundTag) throws IOException {
+        if (this.serialized.array.length > MAX_RETAINED_BUFFER_SIZE)
+            this.serialized.array = new byte[INITIAL_BUFFER_SIZE];
+        this.serialized.reset();
+        compoundTag.write(this.serializedOutput, 512);
+        return this.serialized.length;
+    }
+
+    /**
+     * Decompresses chunk data and keeps it as the serialized data, to be compressed again by
+     * {@link #compressSerialized}.
+     *
+     * @param buffer       the chunk data.
+     * @param dictionaries the dictionaries of the world, needed by {@link RegionFile.CompressionType#ZSTD_DICT}.
+     * @return the serialized length.
+     * @throws IOException if the data couldn't be decompressed.
+     */
+    public int decompressSerialized(ByteBuffer buffer, @Nullable ZstdDictionaryStore dictionaries) throws IOException {
+        if (this.serialized.array.length > MAX_RETAINED_BUFFER_SIZE)
+            this.serialized.array = new byte[INITIAL_BUFFER_SIZE];
+        this.serialized.reset();
+        try (DataInputStream input = this.decompress(buffer, dictionaries)) {
+            input.transferTo(this.serialized);
+        }
+        return this.serialized.length;
+    }
+
+    /**
+     * Compresses the data of the last {@link #serialize} call on this thread, which can be compressed again with
+     * another compression.
+     *
+     * @param compression the compression type.
+     * @param level       the Zstd level, ignored by the other compressions.
+     * @param dictionary  the dictionary used by {@link RegionFile.CompressionType#ZSTD_DICT}, falls back to
+     *                    {@link RegionFile.CompressionType#ZSTD} if null.
+     * @return the chunk data, valid until the next call on this thread.
+     * @throws IOException if the data couldn't be compressed.
+     */
+    public ByteBuffer compressSerialized(RegionFile.CompressionType compression, int level, @Nullable ZstdDictionaryStore.Dictionary dictionary) throws IOException {
+        if (compression == RegionFile.CompressionType.ZSTD_DICT && dictionary == null)
+            compression = RegionFile.CompressionType.ZSTD; // no dictionary trained yet
+        byte[] data = this.serialized.array;
+        int length = this.serialized.length;
+
+        if (this.compressed.array.length > MAX_RETAINED_BUFFER_SIZE)
+            this.compressed.array = new byte[INITIAL_BUFFER_SIZE];
+        this.compressed.reset();
+        this.compressed.write(compression.getVersion());
+        if (compression == RegionFile.CompressionType.ZSTD_DICT) { // the dictionary id follows the compression type
+            int dictionaryId = dictionary.id();
+            this.compressed.write(dictionaryId >>> 24);
+            this.compressed.write(dictionaryId >>> 16);
+            this.compressed.write(dictionaryId >>> 8);
+            this.compressed.write(dictionaryId);
+        }
+        int headerLength = this.compressed.length;
+
+        switch (compression) {
+            case ZSTD, ZSTD_DICT -> {
+                ZstdCompressCtx compressor = compression == RegionFile.CompressionType.ZSTD ? this.zstdCompressor(level) : this.dictionaryCompressor(dictionary, level);
+                int bound = (int) Zstd.compressBound(length);
+                this.ensureCompressedCapacity(headerLength + bound);
+                int compressedLength = compressor.compressByteArray(this.compressed.array, headerLength, bound, data, 0, length);
+                this.setCompressedLength(headerLength + compressedLength);
+            }
+            case LZ4_RAW -> { // a single block, preceded by the uncompressed length
+                int bound = LZ4_COMPRESSOR.maxCompressedLength(length);
+                this.ensureCompressedCapacity(headerLength + 4 + bound);
+                this.compressed.write(length >>> 24);
+                this.compressed.write(length >>> 16);
+                this.compressed.write(length >>> 8);
+                this.compressed.write(length);
+                int compressedLength = LZ4_COMPRESSOR.compress(data, 0, length, this.compressed.array, headerLength + 4, bound);
+                this.setCompressedLength(headerLength + 4 + compressedLength);
+            }
+            case ZLIB -> {
+                this.deflater.reset();
+                this.deflater.setInput(data, 0, length);
+                this.deflater.finish();
+                int compressedLength = headerLength;
+                this.ensureCompressedCapacity(headerLength + length + (length >> 12) + (length >> 14) + 13); // zlib's bound, deflated at once
+                while (!this.deflater.finished()) {
+                    this.ensureCompressedCapacity(compressedLength + INITIAL_BUFFER_SIZE);
+                    compressedLength += this.deflater.deflate(this.compressed.array, compressedLength, this.compressed.array.length - compressedLength);
+                }
+                this.setCompressedLength(compressedLength);
+            }
+            case GZIP -> this.compressStream(new GZIPOutputStream(this.compressed), data, length);
+            case LZ4 -> this.compressStream(new LZ4BlockOutputStream(this.compressed, LZ4_BLOCK_SIZE, LZ4_COMPRESSOR), data, length);
+            case NONE -> this.compressed.write(data, 0, length);
+        }
+        return ByteBuffer.wrap(this.compressed.array, 0, this.compressed.length);
+    }
+
+    /**
+     * Serializes and compresses a compound tag straight into a stream, as it is stored in a region file, so chunks too
+     * large for the region file never have their serialized or compressed data held in memory.
+     * {@link RegionFile.CompressionType#LZ4_RAW} can't be streamed, it's written as {@link RegionFile.CompressionType#LZ4}.
+     *
+     * @param compoundTag the compound tag.
+     * @param compression the compression type.
+     * @param level       the Zstd level, ignored by the other compressions.
+     * @param dictionary  the dictionary used by {@link RegionFile.CompressionType#ZSTD_DICT}, falls back to
+     *                    {@link RegionFile.CompressionType#ZSTD} if null.
+     * @param output      the stream the chunk data is written to, closed once the data is written.
+     * @return the serialized length.
+     * @throws IOException if the compound tag couldn't be serialized, compressed or written.
+     */
+    public int compressTo(CompoundTag compoundTag, RegionFile.CompressionType compression, int level, @Nullable ZstdDictionaryStore.Dictionary dictionary, OutputStream output) throws IOException {
+        if (compression == RegionFile.CompressionType.ZSTD_DICT && dictionary == null)
+            compression = RegionFile.CompressionType.ZSTD; // no dictionary trained yet
+        if (compression == RegionFile.CompressionType.LZ4_RAW)
+            compression = RegionFile.CompressionType.LZ4;
+        output.write(compression.getVersion());
+        if (compression == RegionFile.CompressionType.ZSTD_DICT) { // the dictionary id follows the compression type
+            int dictionaryId = dictionary.id();
+            output.write(dictionaryId >>> 24);
+            output.write(dictionaryId >>> 16);
+            output.write(dictionaryId >>> 8);
+            output.write(dictionaryId);
+        }
+        OutputStream compressor = switch (compression) {
+            case ZSTD -> new ZstdOutputStream(output, level);
+            case ZSTD_DICT -> new ZstdOutputStream(output, level).setDict(dictionary.data());
+            case ZLIB -> {
+                this.deflater.reset();
+                yield new DeflaterOutputStream(output, this.deflater, LZ4_BLOCK_SIZE);
+            }
+            case GZIP -> new GZIPOutputStream(output, LZ4_BLOCK_SIZE);
+            case LZ4, LZ4_RAW -> new LZ4BlockOutputStream(output, LZ4_BLOCK_SIZE, LZ4_COMPRESSOR);
+            case NONE -> output;
+        };
+        // the tags write a few bytes at a time, they're gathered before reaching the compressor
+        try (DataOutputStream serializedOutput = new DataOutputStream(new FastBufferedOutputStream(compressor, LZ4_BLOCK_SIZE))) {
+            compoundTag.write(serializedOutput, 512);
+            serializedOutput.flush();
+            return serializedOutput.size();
+        } // closing it finishes the compressor
+    }
+
+    /**
+     * Returns the uncompressed (serialized) length of the last compound tag compressed on this thread.
+     *
+     * @return the uncompressed length of the last compressed compound tag.
+     */
+    public int getSerializedLength() {
+        return this.serialized.length;
+    }
+
+    /**
+     * Decompresses chunk data, as it is stored in a region file (compression type, followed by the compressed data).
+     *
+     * @param buffer       the chunk data.
+     * @param dictionaries the dictionaries of the world, needed by {@link RegionFile.CompressionType#ZSTD_DICT}.
+     * @return a stream over the decompressed data, valid until the next call on this thread.
+     * @throws IOException if the data couldn't be decompressed.
+     */
+    public DataInputStream decompress(ByteBuffer buffer, @Nullable ZstdDictionaryStore dictionaries) throws IOException {
+        return this.decompress(buffer, dictionaries, 0);
+    }
+
+    /**
+     * Decompresses chunk data, as it is stored in a region file (compression type, followed by the compressed data).
+     *
+     * @param buffer           the chunk data.
+     * @param dictionaries     the dictionaries of the world, needed by {@link RegionFile.CompressionType#ZSTD_DICT}.
+     * @param uncompressedSize the size of the decompressed data if known, to size the decompression buffer once,
+     *                         or 0.
+     * @return a stream over the decompressed data, valid until the next call on this thread.
+     * @throws IOException if the data couldn't be decompressed.
+     */
+    public DataInputStream decompress(ByteBuffer buffer, @Nullable ZstdDictionaryStore dictionaries, int uncompressedSize) throws IOException {
+        RegionFile.CompressionType compression = RegionFile.CompressionType.valueOf(buffer.get());
+        ZstdDictionaryStore.Dictionary dictionary = null;
+        if (compression == RegionFile.CompressionType.ZSTD_DICT) {
+            int dictionaryId = buffer.getInt();
+            dictionary = dictionaries == null ? null : dictionaries.get(dictionaryId);
+            if (dictionary == null)
+                throw new IOException("Missing compression dictionary " + Integer.toUnsignedString(dictionaryId));
+        }
+        int length = buffer.remaining();
+        int rawLength = compression == RegionFile.CompressionType.LZ4_RAW ? buffer.getInt() : 0;
+        if (compression == RegionFile.CompressionType.LZ4_RAW)
+            length -= 4;
+        if (!buffer.hasArray() && length > MAX_RETAINED_BUFFER_SIZE && compression != RegionFile.CompressionType.LZ4_RAW) // a large external chunk, decompressed as it's read instead of copied
+            return new DataInputStream(new FastBufferedInputStream(this.decompressStream(compression, dictionary, new ByteBufferInputStream(buffer))));
+        if (buffer.isDirect() && (compression == RegionFile.CompressionType.ZSTD || compression == RegionFile.CompressionType.ZSTD_DICT))
+            return this.zstdDecompressDirect(buffer, length, dictionary);
+        int position = buffer.position();
+        if (this.decompressed.length > MAX_RETAINED_BUFFER_SIZE)
+            this.decompressed = new byte[INITIAL_BUFFER_SIZE];
+        if (uncompressedSize > 0)
+            this.ensureDecompressedCapacity(uncompressedSize + 1); // + 1, so stream decoders see the end without growing
+
+        // the codecs read the buffer in place, whether it's backed by an array or a slice of the mapped file
+        int decompressedLength = switch (compression) {
+            case ZSTD, ZSTD_DICT -> {
+                byte[] data;
+                int offset;
+                if (buffer.hasArray()) {
+                    data = buffer.array();
+                    offset = buffer.arrayOffset() + position;
+                } else { // a read-only heap buffer, neither an array nor native memory the decoder can read, copied
+                    if (this.source.length < length || this.source.length > MAX_RETAINED_BUFFER_SIZE)
+                        this.source = new byte[Math.max(length, INITIAL_BUFFER_SIZE)];
+                    buffer.get(position, this.source, 0, length);
+                    data = this.source;
+                    offset = 0;
+                }
+                long contentSize = Zstd.decompressedSize(data, offset, length);
+                if (contentSize <= 0 || contentSize > Integer.MAX_VALUE - 8) {
+                    // written by a stream, which doesn't record the content size
+                    try (ZstdInputStream input = new ZstdInputStream(new FastByteArrayInputStream(data, offset, length))) {
+                        if (dictionary != null)
+                            input.setDict(dictionary.decompress());
+                        yield this.readFully(input);
+                    }
+                }
+                ZstdDecompressCtx decompressor = dictionary == null ? this.zstdDecompressor : this.dictionaryDecompressor(dictionary);
+                this.ensureDecompressedCapacity((int) contentSize);
+                yield decompressor.decompressByteArray(this.decompressed, 0, (int) contentSize, data, offset, length);
+            }
+            case ZLIB -> {
+                this.inflater.reset();
+                this.inflater.setInput(buffer.slice(position, length));
+                int inflated = 0;
+                try {
+                    while (!this.inflater.finished()) {
+                        this.ensureDecompressedCapacity(inflated + 1);
+                        int read = this.inflater.inflate(this.decompressed, inflated, this.decompressed.length - inflated);
+                        if (read == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary()))
+                            throw new IOException("Truncated zlib data");
+                        inflated += read;
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Invalid zlib data", ex);
+                }
+                yield inflated;
+            }
+            case GZIP -> {
+                try (InputStream input = new GZIPInputStream(new ByteBufferInputStream(buffer))) {
+                    yield this.readFully(input);
+                }
+            }
+            case LZ4 -> {
+                try (InputStream input = new LZ4BlockInputStream(new ByteBufferInputStream(buffer), LZ4_DECOMPRESSOR)) {
+                    yield this.readFully(input);
+                }
+            }
+            case LZ4_RAW -> {
+                if (rawLength < 0)
+                    throw new IOException("Invalid LZ4 block length");
+                this.ensureDecompressedCapacity(rawLength);
+                try {
+                    if (LZ4_DECOMPRESSOR.decompress(buffer, position, ByteBuffer.wrap(this.decompressed), 0, rawLength) != length)
+                        throw new IOException("Invalid LZ4 block length");
+                } catch (LZ4Exception ex) {
+                    throw new IOException("Invalid LZ4 block", ex);
+                }
+                yield rawLength;
+            }
+            case NONE -> {
+                this.ensureDecompressedCapacity(length);
+                buffer.get(position, this.decompressed, 0, length);
+                yield length;
+            }
+        };
+        this.decompressedInput.array = this.decompressed;
+        this.decompressedInput.offset = 0;
+        this.decompressedInput.length = decompressedLength;
+        this.decompressedInput.position(0);
+        return this.decompressedData;
+    }
+
+    /**
+     * Decompresses Zstd data from native memory (a slice of the mapped file) without copying it first. The native
+     * decoder only writes native memory, so the data is decompressed into a direct buffer of the context.
+     */
+    private DataInputStream zstdDecompressDirect(ByteBuffer buffer, int length, @Nullable ZstdDictionaryStore.Dictionary dictionary) throws IOException {
+        long contentSize = Zstd.decompressedDirectByteBufferSize(buffer, buffer.position(), length);
+        if (contentSize <= 0 || contentSize > Integer.MAX_VALUE - 8) // written by a stream, which doesn't record the content size
+            return new DataInputStream(new FastBufferedInputStream(this.decompressStream(dictionary == null ? RegionFile.CompressionType.ZSTD : RegionFile.CompressionType.ZSTD_DICT, dictionary, new ByteBufferInputStream(buffer))));
+        if (this.directDecompressed == null || this.directDecompressed.capacity() < contentSize || this.directDecompressed.capacity() > MAX_RETAINED_BUFFER_SIZE)
+            this.directDecompressed = ByteBuffer.allocateDirect(Math.max((int) contentSize, INITIAL_BUFFER_SIZE));
+        ZstdDecompressCtx decompressor = dictionary == null ? this.zstdDecompressor : this.dictionaryDecompressor(dictionary);
+        int decompressedLength = decompressor.decompressDirectByteBuffer(this.directDecompressed, 0, (int) contentSize, buffer, buffer.position(), length);
+        return new DataInputStream(new ByteBufferInputStream(this.directDecompressed.slice(0, decompressedLength)));
+    }
+
+    private InputStream decompressStream(RegionFile.CompressionType compression, @Nullable ZstdDictionaryStore.Dictionary dictionary, InputStream input) throws IOException {
+        return switch (compression) {
+            case ZSTD -> new ZstdInputStream(input);
+            case ZSTD_DICT -> new ZstdInputStream(input).setDict(dictionary.decompress());
+            case ZLIB -> new InflaterInputStream(input);
+            case GZIP -> new GZIPInputStream(input);
+            case LZ4 -> new LZ4BlockInputStream(input, LZ4_DECOMPRESSOR);
+            case LZ4_RAW -> throw new IOException("LZ4 blocks can't be streamed");
+            case NONE -> input;
+        };
+    }
+
+    private ZstdCompressCtx zstdCompressor(int level) {
+        if (this.compressorLevel != level) {
+            this.zstdCompressor.setLevel(level);
+            this.compressorLevel = level;
+        }
+        return this.zstdCompressor;
+    }
+
+    private ZstdCompressCtx dictionaryCompressor(ZstdDictionaryStore.Dictionary dictionary, int level) {
+        // the raw dictionary is digested at the level of the context, so it's loaded again when the level changes
+        if (this.compressorDictionaryId != dictionary.id() || this.dictionaryCompressorLevel != level) {
+            this.zstdDictionaryCompressor.setLevel(level);
+            this.zstdDictionaryCompressor.loadDict(dictionary.data());
+            this.compressorDictionaryId = dictionary.id();
+            this.dictionaryCompressorLevel = level;
+        }
+        return this.zstdDictionaryCompressor;
+    }
+
+    private ZstdDecompressCtx dictionaryDecompressor(ZstdDictionaryStore.Dictionary dictionary) {
+        if (this.decompressorDictionaryId != dictionary.id()) {
+            this.zstdDictionaryDecompressor.loadDict(dictionary.decompress());
+            this.decompressorDictionaryId = dictionary.id();
+        }
+        return this.zstdDictionaryDecompressor;
+    }
+
+    private void compressStream(OutputStream compressor, byte[] data, int length) throws IOException {
+        try (compressor) {
+            compressor.write(data, 0, length);
+        } // the compressor must be closed (finished) before its output is used
+    }
+
+    private int readFully(InputStream input) throws IOException {
+        int length = 0;
+        while (true) {
+            this.ensureDecompressedCapacity(length + 1);
+            int read = input.read(this.decompressed, length, this.decompressed.length - length);
+            if (read < 0)
+                return length;
+            length += read;
+        }
+    }
+
+    private void ensureCompressedCapacity(int capacity) {
+        if (this.compressed.array.length < capacity)
+            this.compressed.array = Arrays.copyOf(this.compressed.array, Math.max(capacity, this.compressed.array.length * 2));
+    }
+
+    private void setCompressedLength(int length) {
+        this.compressed.length = length;
+        this.compressed.position(length);
+    }
+
+    private void ensureDecompressedCapacity(int capacity) {
+        if (this.decompressed.length < capacity)
+            this.decompressed = Arrays.copyOf(this.decompressed, Math.max(capacity, this.decompressed.length * 2));
+    }
+}
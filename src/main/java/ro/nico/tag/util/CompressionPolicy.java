@@ -0,0 +1,140 @@
+package ro.nico.tag.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses the compression of each chunk written to the region files of a world, from its serialized size and the time
+ * since its previous write, and records the choices.
+ * <p>
+ * Tiny chunks are stored uncompressed, hot chunks (written again soon after their previous write) are compressed with
+ * LZ4, the others with Zstd (with the trained dictionary, if any). Chunks that don't shrink by at least
+ * {@value #MIN_SAVED_RATIO} of their size are stored uncompressed. Cold chunks are recompressed with a higher Zstd level
+ * when a compaction moves them, see {@link #isCold(long)}.
+ */
+public class CompressionPolicy {
+    private static final double MIN_SAVED_RATIO = 0.1;
+
+    private final RegionConfig config;
+    private final Map<RegionFile.CompressionType, Counters> counters = new EnumMap<>(RegionFile.CompressionType.class);
+    private final LongAdder incompressibleChunks = new LongAdder(), recompressedChunks = new LongAdder();
+
+    public CompressionPolicy(RegionConfig config) {
+        this.config = config;
+        for (RegionFile.CompressionType type : RegionFile.CompressionType.values())
+            this.counters.put(type, new Counters());
+    }
+
+    /**
+     * Chooses the compression of a chunk.
+     *
+     * @param serializedLength  the serialized size of the chunk, in bytes.
+     * @param secondsSinceWrite the number of seconds since the previous write of the chunk, or -1 if it's new.
+     * @param dictionary        true if a trained dictionary is available.
+     * @return the compression.
+     */
+    public Choice choose(int serializedLength, long secondsSinceWrite, boolean dictionary) {
+        RegionFile.CompressionType zstd = dictionary ? RegionFile.CompressionType.ZSTD_DICT : RegionFile.CompressionType.ZSTD;
+        if (!this.config.isAdaptiveCompression())
+            return new Choice(zstd, CompressionContext.ZSTD_LEVEL);
+        if (serializedLength < this.config.getTinyChunkBytes())
+            return new Choice(RegionFile.CompressionType.NONE, 0);
+        if (secondsSinceWrite >= 0 && secondsSinceWrite < this.config.getHotChunkSeconds())
+            return new Choice(RegionFile.CompressionType.LZ4_RAW, 0);
+        return new Choice(zstd, CompressionContext.ZSTD_LEVEL);
+    }
+
+    /**
+     * Returns the compression of a cold chunk, recompressed by a compaction.
+     *
+     * @param dictionary true if a trained dictionary is available.
+     * @return the compression.
+     */
+    public Choice chooseCold(boolean dictionary) {
+        return new Choice(dictionary ? RegionFile.CompressionType.ZSTD_DICT : RegionFile.CompressionType.ZSTD, this.config.getColdZstdLevel());
+    }
+
+    /**
+     * Returns whether a chunk is cold, and should be recompressed when a compaction moves it.
+     *
+     * @param secondsSinceWrite the number of seconds since the last write of the chunk, or -1 if unknown.
+     * @return true if the chunk is cold.
+     */
+    public boolean isCold(long secondsSinceWrite) {
+        return this.config.isAdaptiveCompression() && secondsSinceWrite >= this.config.getColdChunkSeconds();
+    }
+
+    /**
+     * Returns whether compressed data saves too little to be worth decompressing.
+     *
+     * @param serializedLength the serialized size, in bytes.
+     * @param compressedLength the compressed size, in bytes.
+     * @return true if the data should be stored uncompressed.
+     */
+    public boolean isIncompressible(int serializedLength, int compressedLength) {
+        return this.config.isAdaptiveCompression() && compressedLength > serializedLength * (1 - MIN_SAVED_RATIO);
+    }
+
+    /**
+     * Records the compression of a written chunk.
+     *
+     * @param compression      the compression the chunk was stored with.
+     * @param serializedLength the serialized size, in bytes.
+     * @param compressedLength the stored size, in bytes.
+     * @param incompressible   true if the chunk was stored uncompressed because its compression saved too little.
+     * @param recompressed     true if the chunk was recompressed by a compaction.
+     */
+    public void record(RegionFile.CompressionType compression, int serializedLength, int compressedLength, boolean incompressible, boolean recompressed) {
+        Counters counters = this.counters.get(compression);
+        counters.chunks.increment();
+        counters.serializedBytes.add(serializedLength);
+        counters.compressedBytes.add(compressedLength);
+        if (incompressible)
+            this.incompressibleChunks.increment();
+        if (recompressed)
+            this.recompressedChunks.increment();
+    }
+
+    public Metrics getMetrics() {
+        Map<RegionFile.CompressionType, CodecMetrics> codecs = new EnumMap<>(RegionFile.CompressionType.class);
+        this.counters.forEach((type, counters) -> codecs.put(type, new CodecMetrics(counters.chunks.sum(), counters.serializedBytes.sum(), counters.compressedBytes.sum())));
+        return new Metrics(codecs, this.incompressibleChunks.sum(), this.recompressedChunks.sum());
+    }
+
+    private static class Counters {
+        private final LongAdder chunks = new LongAdder(), serializedBytes = new LongAdder(), compressedBytes = new LongAdder();
+    }
+
+    /**
+     * A compression choice.
+     *
+     * @param type  the compression type.
+     * @param level the Zstd level, ignored by the other compression types.
+     */
+    public record Choice(RegionFile.CompressionType type, int level) {
+    }
+
+    /**
+     * The chunks written with a compression type.
+     *
+     * @param chunks          the number of chunks written.
+     * @param serializedBytes their serialized size, in bytes.
+     * @param compressedBytes their stored size, in bytes.
+     */
+    public record CodecMetrics(long chunks, long serializedBytes, long compressedBytes) {
+        public double ratio() {
+            return this.serializedBytes == 0 ? 1 : (double) this.compressedBytes / this.serializedBytes;
+        }
+    }
+
+    /**
+     * The choices of a compression policy.
+     *
+     * @param codecs               the chunks written with each compression type.
+     * @param incompressibleChunks the number of chunks stored uncompressed because their compression saved too little.
+     * @param recompressedChunks   the number of cold chunks recompressed by a compaction.
+     */
+    public record Metrics(Map<RegionFile.CompressionType, CodecMetrics> codecs, long incompressibleChunks, long recompressedChunks) {
+    }
+}
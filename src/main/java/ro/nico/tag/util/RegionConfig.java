@@ -0,0 +1,143 @@
+package ro.nico.tag.util;
+
+import lombok.Data;
+
+/**
+ * Configuration class for the region files of a world.
+ */
+@Data
+public class RegionConfig {
+    /**
+     * Defines how the chunk data of a region file is read from the disk.
+     */
+    private RegionFile.StorageMode storageMode = RegionFile.StorageMode.CHANNEL;
+
+    /**
+     * Toggles write batching: chunk payloads and offset table entries are queued and written in large, ordered writes,
+     * either when {@link #maxBatchedBytes} is reached, periodically, or when the region is closed.
+     */
+    private boolean writeBatching;
+
+    /**
+     * Defines the number of queued payload bytes at which a region file flushes its write batch.
+     */
+    private long maxBatchedBytes = 4 * 1024 * 1024;
+
+    /**
+     * Toggles the world journal: chunk writes are made durable in an append-only journal before being applied to the
+     * region files, and replayed after a crash.
+     */
+    private boolean journal;
+
+    /**
+     * Defines the size of the journal, in bytes, at which a checkpoint forces the region files and truncates it.
+     */
+    private long journalCheckpointBytes = 64 * 1024 * 1024;
+
+    /**
+     * Toggles Zstd compression with the trained dictionaries of the world, once one was trained.
+     */
+    private boolean dictionaryCompression = true;
+
+    /**
+     * Defines the maximum size of a trained dictionary, in bytes.
+     */
+    private int dictionarySize = 32 * 1024;
+
+    /**
+     * Toggles the background compaction of the loaded region files: chunks are moved to close the gaps left by freed
+     * sectors, and the end of the file is truncated.
+     */
+    private boolean compaction;
+
+    /**
+     * Defines the ratio of free sectors (from 0 to 1) from which a region file is compacted.
+     */
+    private double compactionThreshold = 0.25;
+
+    /**
+     * Defines the I/O budget of a compaction, in bytes moved per second.
+     */
+    private long compactionBytesPerSecond = 4 * 1024 * 1024;
+
+    /**
+     * Defines the size of the sectors of new region files, in bytes (a power of two, at least 512). Small sectors waste
+     * less space on small chunks, large ones keep large chunks in the region file. Existing region files keep the
+     * sector size recorded in their header.
+     */
+    private int sectorSize = 4096;
+
+    /**
+     * Defines the number of chunks on each side of a region, as a power of two, from 0 (1 chunk) to 5 (32x32x32
+     * chunks). Smaller regions have smaller headers, which suits sparse worlds. It's recorded in the header of the region
+     * files, and can't be changed once the world has region files.
+     */
+    private int regionShift = 5;
+
+    /**
+     * Defines the number of sectors a region file grows by at once, in a single write. The file is truncated once
+     * twice as many free sectors are left at its end.
+     */
+    private int preallocationSectors = 64;
+
+    /**
+     * Defines the number of region files a world keeps open. Least recently used regions are closed past it, unless
+     * they're in use.
+     */
+    private int maxOpenRegions = 256;
+
+    /**
+     * Defines the memory the indexes of the open regions of a world can use, in bytes, past which least recently used
+     * regions are closed.
+     */
+    private long maxRegionIndexBytes = 64 * 1024 * 1024;
+
+    /**
+     * Defines the number of seconds after which an unused region is closed.
+     */
+    private long regionIdleSeconds = 45;
+
+    /**
+     * Defines the number of closed regions of a world whose empty chunks are remembered, so they're known to be empty
+     * without opening the region again. Least recently used regions are forgotten past it.
+     */
+    private int maxRetainedPresences = 4096;
+
+    /**
+     * Toggles the CRC32C checksum stored with the data of each written chunk, and validated when it's read.
+     * Chunks written without one are still readable.
+     */
+    private boolean checksums = true;
+
+    /**
+     * Toggles the choice of the compression of each chunk by a {@link CompressionPolicy}, instead of always Zstd.
+     */
+    private boolean adaptiveCompression = true;
+
+    /**
+     * Defines the serialized size, in bytes, under which chunks are stored uncompressed.
+     */
+    private int tinyChunkBytes = 256;
+
+    /**
+     * Defines the number of seconds since its previous write under which a chunk is hot, and compressed with LZ4.
+     */
+    private long hotChunkSeconds = 300;
+
+    /**
+     * Defines the number of seconds since its last write after which a chunk is cold, and recompressed with
+     * {@link #coldZstdLevel} when a compaction moves it.
+     */
+    private long coldChunkSeconds = 24 * 60 * 60;
+
+    /**
+     * Defines the Zstd level of cold chunks.
+     */
+    private int coldZstdLevel = 12;
+
+    /**
+     * Toggles the lazy decoding of the chunks read, see {@link ro.nico.tag.nbt.tags.collection.CompoundTag#lazy(byte[], int)}.
+     * Chunks loaded but never accessed are then saved by copying their bytes.
+     */
+    private boolean lazyChunkTags = true;
+}
@@ -1,151 +1,426 @@
 package ro.nico.tag.util;
 
-import com.github.luben.zstd.ZstdInputStream;
-import com.github.luben.zstd.ZstdOutputStream;
-import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
-import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
-import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
-import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
-import lombok.Cleanup;
-import net.jpountz.lz4.LZ4BlockInputStream;
-import net.jpountz.lz4.LZ4BlockOutputStream;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.jetbrains.annotations.Nullable;
 import ro.nico.tag.CraftTagRegister;
+import ro.nico.tag.nbt.api.Tag;
+import ro.nico.tag.nbt.api.path.TagPath;
+import ro.nico.tag.nbt.api.visitor.TagReader;
+import ro.nico.tag.nbt.api.visitor.TagVisitor;
 import ro.nico.tag.nbt.tags.collection.CompoundTag;
+import ro.nico.tag.wrapper.ChunkPos;
 import ro.nico.tag.wrapper.RegionPos;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.CRC32C;
 
+/**
+ * A region file, storing a cube of chunks (32x32x32 by default).
+ * <p>
+ * Format v3 layout: a {@value #FILE_HEADER_SIZE} bytes file header (magic, format version, sector size, chunks shift),
+ * the offset table (one int per chunk, {@code sector << 8 | sectors count}), the metadata table
+ * ({@value #METADATA_LENGTH} bytes per chunk: last modification in seconds, uncompressed size, compression type) and
+ * the sectors, starting at the first sector boundary after the tables. See {@link Geometry}.
+ * <p>
+ * Format v2 files have the same layout with a {@value #LEGACY_FILE_HEADER_SIZE} bytes file header, 4 KiB sectors and
+ * 32x32x32 chunks, and are read as they are. Format v1 files, made of the offset table followed by the sectors, are
+ * upgraded to format v2 when opened.
+ */
 public class RegionFile implements AutoCloseable {
-    private static final byte SECTOR_FREE = 0, SECTOR_NOT_FREE = 1;
-    private static final int SECTOR_SIZE = 4096; // 4kb sectors
-    private static final int CHUNKS_WIDTH = 32, CHUNKS_LENGTH = 32, CHUNKS_HEIGHT = 32; // a region file contains x32 x y32 x z32 chunks\
     private static final int OFFSET_LENGTH = 4;
-    private static final int CHUNKS_TABLE_SIZE = CHUNKS_HEIGHT * CHUNKS_WIDTH * CHUNKS_LENGTH * OFFSET_LENGTH;
-    private static final int OFFSET_TABLE_LENGTH = CHUNKS_HEIGHT * CHUNKS_LENGTH * CHUNKS_WIDTH;
+    private static final int MAGIC = 0x54414752; // TAGR
+    private static final int FORMAT_VERSION = 3;
+    private static final int FILE_HEADER_SIZE = 64; // magic, format version, sector size, chunks shift, the rest is reserved
+    private static final int METADATA_LENGTH = 12; // last modification, uncompressed size, compression type
+    private static final int LEGACY_FORMAT_VERSION = 2;
+    private static final int LEGACY_FILE_HEADER_SIZE = 4096; // magic, format version, the rest is reserved
+    private static final Geometry LEGACY_GEOMETRY = new Geometry(LEGACY_FILE_HEADER_SIZE, 4096, 5); // format v1 and v2 files
+    private static final int V1_TABLE_SIZE = LEGACY_GEOMETRY.chunks() * OFFSET_LENGTH; // the offset table, at the start of format v1 files
+    private static final int MIN_SECTOR_SIZE = 512;
+    private static final int MAX_CHUNKS_SHIFT = 5;
+    private static final int MAX_CHUNK_SECTORS = 255; // the sectors count of an offset is stored in 8 bits
+    // offset of a chunk too large for the region file, stored in its own file next to it (sector -1, no sectors)
+    private static final int EXTERNAL_OFFSET = 0xFFFFFF00;
+    private static final int CHECKSUM_FLAG = 0x80000000; // set on the length of chunk data followed by its CRC32C
+    private static final int CHUNK_LOCK_STRIPES = 64; // a power of two
+    private static final int MAX_READ_AHEAD_BYTES = 1024 * 1024; // the largest coalesced read
+    private static final int MAX_READ_AHEAD_GAP = 4; // sectors read through between two chunks, instead of splitting the read
+    private static final long READ_AHEAD_EXPIRY = TimeUnit.SECONDS.toNanos(5);
+    private static final ByteBuffer ZEROES = ByteBuffer.allocateDirect(1024 * 1024).asReadOnlyBuffer(); // written to grow files
 
     private File regionFile;
     private AsynchronousFileChannel fileChannel;
     private FileLock fileLock;
-    private final ReentrantLock[][][] regionLocks = new ReentrantLock[CHUNKS_WIDTH][CHUNKS_HEIGHT][CHUNKS_LENGTH];
-    private final AtomicInteger sectorsSize = new AtomicInteger();
-    private final AtomicIntegerArray offsets = new AtomicIntegerArray(OFFSET_TABLE_LENGTH);
+    private StorageMode storageMode;
+    private FileChannel mappedChannel; // only used by StorageMode.MAPPED
+    private volatile MappedByteBuffer mappedBuffer;
+    private final Object remapLock = new Object();
+    private RegionWriteBatch writeBatch; // null if write batching is disabled
+    private long maxBatchedBytes;
+    private RegionPos regionPos;
+    private RegionJournal journal; // null if journaling is disabled
+    private ZstdDictionaryStore dictionaries; // null if dictionary compression is disabled
+    private CompressionPolicy compressionPolicy;
+    private Geometry geometry;
+    private int sectorSize, dataPosition; // from the geometry, often used
+    private int chunksShift, chunksMask, chunksCount;
+    private final ReentrantLock[] chunkLocks = new ReentrantLock[CHUNK_LOCK_STRIPES]; // a chunk is guarded by the stripe of its location
+    private final AtomicIntegerArray chunkVersions = new AtomicIntegerArray(CHUNK_LOCK_STRIPES); // odd while a chunk of the stripe is written
+    private RegionIndex index; // the offset and metadata tables
+    private final Map<Integer, ReadAhead> readAhead = new ConcurrentHashMap<>(); // location -> data read ahead, until it's read or written
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private volatile boolean closed;
+    private boolean opened; // false if the constructor failed, leaving the file unusable
+    private Exception openFailure;
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock(); // writers share it, taking or releasing a snapshot is exclusive
+    private volatile RegionSnapshot snapshot; // null if no snapshot is attached
+    private boolean checksums;
+    private boolean lazyChunkTags;
+    private int preallocationSectors;
     // 128 kb of space
-    private final AtomicByteArray freeSectors = new AtomicByteArray(OFFSET_TABLE_LENGTH * 255); // initial with '0' , we don't need to fill sectors anymore! :D
-    // almost 8 mb of space
+    private SectorAllocator sectorAllocator;
 
     public RegionFile(final Path directory, final RegionPos regionID) {
-        this(directory, regionID.getX(), regionID.getY(), regionID.getZ());
+        this(directory, regionID, new RegionConfig());
+    }
+
+    public RegionFile(final Path directory, final RegionPos regionID, final RegionConfig config) {
+        this(directory, regionID.getX(), regionID.getY(), regionID.getZ(), config, null, null);
+    }
+
+    public RegionFile(final Path directory, final RegionPos regionID, final RegionConfig config, @Nullable final RegionJournal journal, @Nullable final ZstdDictionaryStore dictionaries) {
+        this(directory, regionID.getX(), regionID.getY(), regionID.getZ(), config, journal, dictionaries, null);
+    }
+
+    public RegionFile(final Path directory, final RegionPos regionID, final RegionConfig config, @Nullable final RegionJournal journal, @Nullable final ZstdDictionaryStore dictionaries, @Nullable final CompressionPolicy compressionPolicy) {
+        this(directory, regionID.getX(), regionID.getY(), regionID.getZ(), config, journal, dictionaries, compressionPolicy);
     }
 
     public RegionFile(final Path directory, final int regionX, final int regionY, final int regionZ) {
+        this(directory, regionX, regionY, regionZ, new RegionConfig(), null, null, null);
+    }
+
+    public RegionFile(final Path directory, final int regionX, final int regionY, final int regionZ, final RegionConfig config, @Nullable final RegionJournal journal, @Nullable final ZstdDictionaryStore dictionaries) {
+        this(directory, regionX, regionY, regionZ, config, journal, dictionaries, null);
+    }
+
+    /**
+     * Opens a region file, creating it if it doesn't exist.
+     *
+     * @param journal           the journal of the world, or null if journaling is disabled.
+     * @param dictionaries      the compression dictionaries of the world, or null if dictionary compression is disabled.
+     * @param compressionPolicy the compression policy of the world, or null for a policy of this file only.
+     */
+    public RegionFile(final Path directory, final int regionX, final int regionY, final int regionZ, final RegionConfig config, @Nullable final RegionJournal journal, @Nullable final ZstdDictionaryStore dictionaries, @Nullable final CompressionPolicy compressionPolicy) {
         try {
-            this.regionFile = new File(directory + File.separator + "r." + regionX + "." + regionY + "." + regionZ + ".tag");
+            this.regionPos = RegionPos.of(regionX, regionY, regionZ);
+            this.journal = journal;
+            this.dictionaries = dictionaries;
+            this.compressionPolicy = compressionPolicy != null ? compressionPolicy : new CompressionPolicy(config);
+            this.regionFile = getRegionFile(directory.toFile(), this.regionPos);
+            this.storageMode = config.getStorageMode();
+            this.checksums = config.isChecksums();
+            this.lazyChunkTags = config.isLazyChunkTags();
+            this.preallocationSectors = Math.max(1, config.getPreallocationSectors());
+            if (isFormatV1(this.regionFile.toPath()))
+                upgradeFormatV1(this.regionFile.toPath());
             this.fileChannel = AsynchronousFileChannel.open(this.regionFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
             this.fileLock = this.fileChannel.lock().get(30, TimeUnit.SECONDS);
 
-            if (this.fileChannel.size() < CHUNKS_TABLE_SIZE)
-                this.fileChannel.write(ByteBuffer.allocate(CHUNKS_TABLE_SIZE), 0).get();
+            this.geometry = this.readGeometry(config);
+            this.sectorSize = this.geometry.sectorSize();
+            this.dataPosition = this.geometry.dataPosition();
+            this.chunksShift = this.geometry.chunksShift();
+            this.chunksMask = this.geometry.chunksPerSide() - 1;
+            this.chunksCount = this.geometry.chunks();
+            this.index = new RegionIndex(this.chunksShift);
+            if (this.fileChannel.size() < this.dataPosition) { // new file
+                ByteBuffer header = ByteBuffer.allocate(this.dataPosition).putInt(MAGIC).putInt(FORMAT_VERSION).putInt(this.sectorSize).putInt(this.chunksShift);
+                this.fileChannel.write(header.clear(), 0).get();
+            }
 
-            long sectorsResize = this.fileChannel.size() - CHUNKS_TABLE_SIZE;
-            ByteBuffer growingBuffer = ByteBuffer.allocate(SECTOR_SIZE);
-            while (((sectorsResize + growingBuffer.position()) % SECTOR_SIZE) != 0)
+            long sectorsResize = this.fileChannel.size() - this.dataPosition;
+            ByteBuffer growingBuffer = ByteBuffer.allocate(this.sectorSize);
+            while (((sectorsResize + growingBuffer.position()) % this.sectorSize) != 0)
                 growingBuffer.put((byte) 0);
             growingBuffer.flip();
             if (growingBuffer.hasRemaining())
                 this.fileChannel.write(growingBuffer, this.fileChannel.size()).get();
 
-            int totalSectors = (int) (((this.fileChannel.size() - CHUNKS_TABLE_SIZE)) / SECTOR_SIZE); // can be 0 if no sectors exists
-            this.sectorsSize.set(totalSectors);
+            int totalSectors = (int) (((this.fileChannel.size() - this.dataPosition)) / this.sectorSize); // can be 0 if no sectors exists
+            this.sectorAllocator = new SectorAllocator(totalSectors);
 
-            ByteBuffer fileChunksTable = ByteBuffer.allocate(CHUNKS_TABLE_SIZE);
-            this.fileChannel.read(fileChunksTable, 0).get();
-            fileChunksTable.flip();
+            ByteBuffer fileChunksTable; // the offset table, followed by the metadata table
+            int tablesSize = this.chunksCount * (OFFSET_LENGTH + METADATA_LENGTH);
+            if (this.storageMode == StorageMode.MAPPED) {
+                this.mappedChannel = FileChannel.open(this.regionFile.toPath(), StandardOpenOption.READ);
+                fileChunksTable = this.mapped(this.dataPosition).slice(this.geometry.offsetsPosition(), tablesSize); // read the tables straight from the mapping
+            } else {
+                fileChunksTable = ByteBuffer.allocate(tablesSize);
+                this.fileChannel.read(fileChunksTable, this.geometry.offsetsPosition()).get();
+                fileChunksTable.flip();
+            }
 
-            for (int i = 0; i < (CHUNKS_WIDTH * CHUNKS_LENGTH * CHUNKS_HEIGHT); i++) { // x, y, z
+            for (int i = 0; i < this.chunksCount; i++) { // x, y, z
                 int offset = fileChunksTable.getInt();
-                this.offsets.set(i, offset);
+                this.index.setOffset(i, offset); // only allocates the pages of the index holding chunks
                 int sector = offset >> 8; // the starting sector of the data
                 int sectorsSize = offset & 0xff; // the number of sectors the data covers
 
-                if (offset != 0 && sector + sectorsSize <= totalSectors) // if offset is not empty and starting sector + sectorsSize is less than or equals sectors_free.size,
-                    for (int sector_count = 0; sector_count < sectorsSize; sector_count++)   // iterate over each sector from sectorsSize and
-                        this.freeSectors.set(sector + sector_count, SECTOR_NOT_FREE); // set it not free
+                if (offset != 0 && offset != EXTERNAL_OFFSET && sector + sectorsSize <= totalSectors) // if offset is not empty and starting sector + sectorsSize is less than or equals the total sectors,
+                    this.sectorAllocator.markUsed(sector, sectorsSize); // mark its sectors as used
+            }
+            this.sectorAllocator.rebuildFreeRuns();
+            for (int i = 0; i < this.chunksCount; i++) {
+                int lastModified = fileChunksTable.getInt(), uncompressedSize = fileChunksTable.getInt(), compression = fileChunksTable.getInt();
+                if (this.index.getOffset(i) != 0)
+                    this.index.setMetadata(i, lastModified, uncompressedSize, compression);
             }
 
-            for (int x = 0; x < CHUNKS_LENGTH; x++) {
-                for (int y = 0; y < CHUNKS_HEIGHT; y++) {
-                    for (int z = 0; z < CHUNKS_WIDTH; z++) {
-                        this.regionLocks[x][y][z] = new ReentrantLock();
-                    }
-                }
+            if (config.isWriteBatching()) { // the batch keeps an image of the whole header, as it is on the disk
+                int[] header = new int[this.chunksCount * 4];
+                fileChunksTable.rewind().asIntBuffer().get(header);
+                this.writeBatch = new RegionWriteBatch(this.fileChannel, this.sectorSize, this.geometry.offsetsPosition(), header);
+                this.maxBatchedBytes = config.getMaxBatchedBytes();
             }
+
+            for (int i = 0; i < CHUNK_LOCK_STRIPES; i++)
+                this.chunkLocks[i] = new ReentrantLock();
+
+            if (this.journal != null) { // replay what a crash may have left in the journal for this region
+                this.journal.replay(this.regionPos, (location, payload, external) ->
+                        this.applyChunkData(location & this.chunksMask, location >> (this.chunksShift * 2), (location >> this.chunksShift) & this.chunksMask, payload, payload == null && !external, external, 0, external ? this.externalCompression(location) : this.compressionOf(payload)));
+                this.force();
+                this.journal.recovered(this.regionPos);
+            }
+            this.opened = true;
         } catch (Exception ex) {
+            this.openFailure = ex;
             CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to initiate RegionFile", ex);
         }
     }
 
+    /**
+     * Returns whether the file was opened, and isn't closed yet. The constructor logs its failures instead of throwing
+     * them, leaving a file that can't be used.
+     *
+     * @return true if the file is open.
+     * @see #getOpenFailure()
+     */
+    public final boolean isOpen() {
+        return this.opened && !this.closed;
+    }
+
+    /**
+     * Returns the reason the file couldn't be opened.
+     *
+     * @return the exception thrown while opening the file, or null if it was opened.
+     */
+    @Nullable
+    public final Exception getOpenFailure() {
+        return this.openFailure;
+    }
+
+    /**
+     * Reads the geometry of the file from its header, or takes the one of the config for a new file.
+     * Existing files keep their sector size, but their chunks must be laid out like the ones of the world.
+     */
+    private Geometry readGeometry(final RegionConfig config) throws IOException, ExecutionException, InterruptedException {
+        int chunksShift = config.getRegionShift();
+        if (chunksShift < 0 || chunksShift > MAX_CHUNKS_SHIFT)
+            throw new IllegalArgumentException("Invalid region shift " + chunksShift);
+        ByteBuffer header = ByteBuffer.allocate(16);
+        this.fileChannel.read(header, 0).get();
+        if (header.position() < 8) { // new file
+            int sectorSize = config.getSectorSize();
+            if (sectorSize < MIN_SECTOR_SIZE || Integer.bitCount(sectorSize) != 1)
+                throw new IllegalArgumentException("Invalid sector size " + sectorSize);
+            return new Geometry(FILE_HEADER_SIZE, sectorSize, chunksShift);
+        }
+        if (header.getInt(0) != MAGIC)
+            throw new IOException("Not a region file: " + this.regionFile.getName());
+        int version = header.getInt(4);
+        Geometry geometry;
+        if (version == LEGACY_FORMAT_VERSION)
+            geometry = LEGACY_GEOMETRY;
+        else if (version == FORMAT_VERSION && header.position() == 16)
+            geometry = new Geometry(FILE_HEADER_SIZE, header.getInt(8), header.getInt(12));
+        else
+            throw new IOException("Unsupported region file format " + version + ": " + this.regionFile.getName());
+        if (geometry.sectorSize() < MIN_SECTOR_SIZE || Integer.bitCount(geometry.sectorSize()) != 1 || geometry.chunksShift() < 0 || geometry.chunksShift() > MAX_CHUNKS_SHIFT)
+            throw new IOException("Invalid region file geometry: " + this.regionFile.getName());
+        if (geometry.chunksShift() != chunksShift)
+            throw new IOException("Region file " + this.regionFile.getName() + " has " + geometry.chunksPerSide() + " chunks per side, the world uses " + (1 << chunksShift));
+        return geometry;
+    }
+
     public final FileLock getLock() {
         return this.fileLock;
     }
 
+    public final RegionIndex getIndex() {
+        return this.index;
+    }
+
+    public final Geometry getGeometry() {
+        return this.geometry;
+    }
+
     public final File getFile() {
         return this.regionFile;
     }
 
+    public final StorageMode getStorageMode() {
+        return this.storageMode;
+    }
+
+    /**
+     * Returns true if the file exists and is a format v1 region file (no file header, it starts with the offset table).
+     */
+    private static boolean isFormatV1(final Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < V1_TABLE_SIZE)
+            return false; // new file, or not even a whole offset table
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic, 0);
+            return magic.flip().getInt() != MAGIC;
+        }
+    }
+
+    /**
+     * Upgrades a format v1 region file to format v2, which has the same geometry. The file is rewritten to a temporary file, with the
+     * sectors copied as they are (sector numbers are relative to the first sector, so the offsets don't change), and
+     * moved over the old file. Chunks get the file modification time, an unknown uncompressed size and the compression
+     * type read from their data.
+     */
+    private static void upgradeFormatV1(final Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".upgrade");
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer offsets = ByteBuffer.allocate(V1_TABLE_SIZE);
+            while (offsets.hasRemaining())
+                source.read(offsets, offsets.position()); // the file is at least as large as the table
+            offsets.flip();
+            ByteBuffer header = ByteBuffer.allocate(LEGACY_GEOMETRY.dataPosition());
+            header.putInt(MAGIC).putInt(LEGACY_FORMAT_VERSION);
+            header.put(LEGACY_GEOMETRY.offsetsPosition(), offsets, 0, V1_TABLE_SIZE);
+            int lastModified = (int) (Files.getLastModifiedTime(file).toMillis() / 1000);
+            ByteBuffer chunkHeader = ByteBuffer.allocate(9); // length, checksum, compression type
+            for (int location = 0; location < LEGACY_GEOMETRY.chunks(); location++) {
+                int offset = offsets.getInt(location * OFFSET_LENGTH);
+                if (offset == 0)
+                    continue;
+                int compression = -1;
+                if (offset != EXTERNAL_OFFSET) {
+                    source.read(chunkHeader.clear(), V1_TABLE_SIZE + ((long) (offset >> 8) * LEGACY_GEOMETRY.sectorSize()));
+                    if (!chunkHeader.hasRemaining())
+                        compression = chunkHeader.get((chunkHeader.getInt(0) & CHECKSUM_FLAG) != 0 ? 8 : 4);
+                }
+                header.putInt(LEGACY_GEOMETRY.metadataPosition() + location * METADATA_LENGTH, lastModified);
+                header.putInt(LEGACY_GEOMETRY.metadataPosition() + location * METADATA_LENGTH + 8, compression);
+            }
+            header.clear();
+            while (header.hasRemaining())
+                target.write(header);
+            long position = V1_TABLE_SIZE;
+            while (position < source.size())
+                position += source.transferTo(position, source.size() - position, target);
+            target.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the metadata of a chunk.
+     *
+     * @return the metadata, or null if the chunk is empty.
+     */
+    @Nullable
+    public final ChunkMetadata getChunkMetadata(final int chunkX, final int chunkY, final int chunkZ) {
+        int location = this.geometry.location(chunkX & this.chunksMask, chunkY & this.chunksMask, chunkZ & this.chunksMask);
+        if (this.index.getOffset(location) == 0)
+            return null;
+        int compression = this.index.getCompression(location);
+        return new ChunkMetadata(Integer.toUnsignedLong(this.index.getLastModified(location)), this.index.getUncompressedSize(location), compression < 0 ? null : CompressionType.valueOf(compression));
+    }
+
+    /**
+     * Returns the file of a region.
+     *
+     * @param directory the directory of the region files.
+     * @param regionPos the region position.
+     * @return the region file, which may not exist.
+     */
+    public static File getRegionFile(final File directory, final RegionPos regionPos) {
+        return new File(directory, "r." + regionPos.getX() + "." + regionPos.getY() + "." + regionPos.getZ() + ".tag");
+    }
+
+    /**
+     * Returns the position of a region from the name of its file.
+     *
+     * @param file the region file.
+     * @return the region position, or null if this isn't a region file.
+     */
+    @Nullable
+    public static RegionPos getRegionPos(final File file) {
+        String[] parts = file.getName().split("\\.");
+        if (parts.length != 5 || !parts[0].equals("r") || !parts[4].equals("tag"))
+            return null;
+        try {
+            return RegionPos.of(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
     @SuppressWarnings("deprecation")
     public final CompoundTag getChunkCompoundTag(final int chunkX, final int chunkY, final int chunkZ) {
-        int regionChunkX = chunkX & 31;
-        int regionChunkY = chunkY & 31;
-        int regionChunkZ = chunkZ & 31;
+        int regionChunkX = chunkX & this.chunksMask;
+        int regionChunkY = chunkY & this.chunksMask;
+        int regionChunkZ = chunkZ & this.chunksMask;
         if (this.outOfBounds(regionChunkX, regionChunkY, regionChunkZ))
             throw new IllegalStateException("Chunk out of bounds!"); // might never happen
         CompoundTag compoundTag = new CompoundTag();
-        ReentrantLock lock = this.regionLocks[regionChunkX][regionChunkY][regionChunkZ];
+        ReentrantLock lock = this.getChunkLock(regionChunkX, regionChunkY, regionChunkZ);
         lock.lock();
         try {
             ByteBuffer buffer = this.readChunkData(regionChunkX, regionChunkY, regionChunkZ);
             if (buffer == null)
                 return compoundTag;
-            buffer.flip();
-            if (!buffer.hasArray())
-                return compoundTag;
             if (!buffer.hasRemaining())
                 return compoundTag;
 
-            @Cleanup FastByteArrayInputStream bais = new FastByteArrayInputStream(buffer.array());
-            CompressionType compression = CompressionType.valueOf(bais.readByte());
-
-            @Cleanup FastBufferedInputStream fbis = switch (compression) {
-                case ZSTD -> new FastBufferedInputStream(new ZstdInputStream(bais));
-                case GZIP -> new FastBufferedInputStream(new GZIPInputStream(bais));
-                case ZLIB -> new FastBufferedInputStream(new InflaterInputStream(bais));
-                case LZ4 -> new FastBufferedInputStream(new LZ4BlockInputStream(bais));
-                case NONE -> new FastBufferedInputStream(bais);
-            };
-
-            @Cleanup DataInputStream dis = new DataInputStream(fbis);
-
-            return compoundTag.read(dis, 512);
+            int location = this.geometry.location(regionChunkX, regionChunkY, regionChunkZ);
+            int uncompressedSize = this.index.getUncompressedSize(location);
+            try (DataInputStream dis = CompressionContext.get().decompress(buffer, this.dictionaries, uncompressedSize)) {
+                return this.readCompoundTag(dis);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
@@ -154,18 +429,245 @@ public class RegionFile implements AutoCloseable {
         return compoundTag;
     }
 
+    /**
+     * Reads the decompressed data of a chunk, lazily if enabled: the data is copied out of the decompression buffer, and
+     * decoded when accessed.
+     */
+    private CompoundTag readCompoundTag(DataInputStream dis) throws IOException {
+        if (this.lazyChunkTags)
+            return CompoundTag.lazy(dis.readAllBytes(), 512);
+        return new CompoundTag().read(dis, 512);
+    }
+
+    /**
+     * Reads a chunk without blocking the calling thread: its data is read by the file channel, and decompressed by an
+     * executor once read.
+     *
+     * @param executor the executor decompressing the chunk data.
+     * @return the chunk, empty if it couldn't be read.
+     * @see #getChunkCompoundTag(int, int, int)
+     */
+    @SuppressWarnings("deprecation")
+    public final CompletableFuture<CompoundTag> getChunkCompoundTagAsync(final int chunkX, final int chunkY, final int chunkZ, final Executor executor) {
+        int regionChunkX = chunkX & this.chunksMask;
+        int regionChunkY = chunkY & this.chunksMask;
+        int regionChunkZ = chunkZ & this.chunksMask;
+        return this.readChunkAsync(regionChunkX, regionChunkY, regionChunkZ).handleAsync((chunk, ex) -> {
+            CompoundTag compoundTag = new CompoundTag();
+            if (ex != null) {
+                CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to read chunk data", ex);
+                return compoundTag;
+            }
+            if (chunk.payload() == null || !chunk.payload().hasRemaining())
+                return compoundTag;
+            try (DataInputStream dis = CompressionContext.get().decompress(chunk.payload(), this.dictionaries, chunk.uncompressedSize())) {
+                return this.readCompoundTag(dis);
+            } catch (IOException ex2) {
+                CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to read chunk data", ex2);
+            }
+            return compoundTag;
+        }, executor);
+    }
+
+    /**
+     * Reads the raw data of a chunk, with a single asynchronous read of its sectors.
+     * <p>
+     * No lock is held during the read: the version of the chunk lock stripe is checked once the read completes, and
+     * the chunk is read again if it was written in between. Chunks being written, and the ones read from memory
+     * (mapped, read ahead, not flushed yet) or from an external file are read on the calling thread, under the lock;
+     * mapped data is copied before the lock is released, since it's decompressed later.
+     */
+    private CompletableFuture<ChunkRead> readChunkAsync(final int regionChunkX, final int regionChunkY, final int regionChunkZ) {
+        int location = this.geometry.location(regionChunkX, regionChunkY, regionChunkZ);
+        int stripe = location & (CHUNK_LOCK_STRIPES - 1);
+        int version = this.chunkVersions.get(stripe);
+        int offset = this.index.getOffset(location);
+        int uncompressedSize = this.index.getUncompressedSize(location);
+        long position = this.dataPosition + ((long) (offset >> 8) * this.sectorSize);
+        if ((version & 1) != 0 || offset == 0 || offset == EXTERNAL_OFFSET || this.storageMode == StorageMode.MAPPED || this.readAhead.containsKey(location)
+                || (this.writeBatch != null && this.writeBatch.getPayload(position) != null)) {
+            ReentrantLock lock = this.chunkLocks[stripe];
+            lock.lock();
+            try {
+                ByteBuffer payload = this.readChunkPayload(regionChunkX, regionChunkY, regionChunkZ, true);
+                if (payload != null && !payload.hasArray()) // a live slice of a mapped file, which may be rewritten once unlocked
+                    payload = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+                return CompletableFuture.completedFuture(new ChunkRead(payload, this.index.getUncompressedSize(location)));
+            } catch (Exception ex) {
+                return CompletableFuture.failedFuture(ex);
+            } finally {
+                lock.unlock();
+            }
+        }
+        int sectorsSize = offset & 0xff;
+        if ((offset >> 8) + sectorsSize > this.sectorAllocator.getTotalSectors())
+            return CompletableFuture.failedFuture(new IllegalStateException("Invalid sector"));
+        return this.read(ByteBuffer.allocate(sectorsSize * this.sectorSize), position).thenCompose(sectors -> {
+            if (this.chunkVersions.get(stripe) != version) // written in between, the sectors may hold anything
+                return this.readChunkAsync(regionChunkX, regionChunkY, regionChunkZ);
+            int length = sectors.limit() < 4 ? -1 : sectors.getInt(0);
+            boolean checksummed = (length & CHECKSUM_FLAG) != 0;
+            length &= ~CHECKSUM_FLAG;
+            int headerSize = checksummed ? 8 : 4;
+            if (length < 0 || length + headerSize > sectors.limit())
+                return CompletableFuture.failedFuture(new IllegalStateException("Invalid chunk length"));
+            ByteBuffer buffer = sectors.slice(headerSize, length);
+            if (checksummed) {
+                try {
+                    this.verifyChecksum(buffer, sectors.getInt(4), regionChunkX, regionChunkY, regionChunkZ);
+                } catch (IOException ex) {
+                    return CompletableFuture.failedFuture(ex);
+                }
+            }
+            return CompletableFuture.completedFuture(new ChunkRead(buffer, uncompressedSize));
+        });
+    }
+
+    /**
+     * Fills a buffer from the file, issuing reads from the completion handler until it's full or the end of the file
+     * is reached. The returned buffer is flipped.
+     */
+    private CompletableFuture<ByteBuffer> read(final ByteBuffer buffer, final long position) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        this.fileChannel.read(buffer, position, future, new CompletionHandler<>() {
+            @Override
+            public void completed(Integer read, CompletableFuture<ByteBuffer> future) {
+                if (read < 0 || !buffer.hasRemaining())
+                    future.complete(buffer.flip());
+                else
+                    RegionFile.this.fileChannel.read(buffer, position + buffer.position(), future, this);
+            }
+
+            @Override
+            public void failed(Throwable ex, CompletableFuture<ByteBuffer> future) {
+                future.completeExceptionally(ex);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Reads a chunk as a stream of events, without building its tags. Lookups of a few fields can skip everything else.
+     *
+     * @param visitor the visitor.
+     * @return false if the chunk is empty, or the visitor stopped the reading.
+     * @throws IOException if any I/O error occurs, or the chunk data is malformed.
+     * @see TagReader
+     */
+    public final boolean visitChunk(final int chunkX, final int chunkY, final int chunkZ, final TagVisitor visitor) throws IOException {
+        int regionChunkX = chunkX & this.chunksMask;
+        int regionChunkY = chunkY & this.chunksMask;
+        int regionChunkZ = chunkZ & this.chunksMask;
+        ReentrantLock lock = this.getChunkLock(regionChunkX, regionChunkY, regionChunkZ);
+        lock.lock();
+        try {
+            ByteBuffer buffer = this.readChunkData(regionChunkX, regionChunkY, regionChunkZ);
+            if (buffer == null || !buffer.hasRemaining())
+                return false;
+            int uncompressedSize = this.index.getUncompressedSize(this.geometry.location(regionChunkX, regionChunkY, regionChunkZ));
+            try (DataInputStream dis = CompressionContext.get().decompress(buffer, this.dictionaries, uncompressedSize)) {
+                return TagReader.readCompound(dis, visitor);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds a tag in a chunk, decoding nothing else.
+     *
+     * @param path the path of the tag in the chunk.
+     * @return the tag, or null if the chunk is empty or doesn't have it.
+     * @throws IOException if any I/O error occurs, or the chunk data is malformed.
+     * @see TagPath#read(java.io.DataInput)
+     */
+    @Nullable
+    public final Tag queryChunk(final int chunkX, final int chunkY, final int chunkZ, final TagPath path) throws IOException {
+        int regionChunkX = chunkX & this.chunksMask;
+        int regionChunkY = chunkY & this.chunksMask;
+        int regionChunkZ = chunkZ & this.chunksMask;
+        ReentrantLock lock = this.getChunkLock(regionChunkX, regionChunkY, regionChunkZ);
+        lock.lock();
+        try {
+            ByteBuffer buffer = this.readChunkData(regionChunkX, regionChunkY, regionChunkZ);
+            if (buffer == null || !buffer.hasRemaining())
+                return null;
+            int uncompressedSize = this.index.getUncompressedSize(this.geometry.location(regionChunkX, regionChunkY, regionChunkZ));
+            try (DataInputStream dis = CompressionContext.get().decompress(buffer, this.dictionaries, uncompressedSize)) {
+                return path.read(dis);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the uncompressed (serialized NBT) data of a chunk.
+     *
+     * @return the uncompressed data, or null if the chunk is empty.
+     * @throws IOException if any I/O error occurs.
+     */
+    @Nullable
+    public final byte[] getChunkUncompressedData(final int chunkX, final int chunkY, final int chunkZ) throws IOException {
+        int regionChunkX = chunkX & this.chunksMask;
+        int regionChunkY = chunkY & this.chunksMask;
+        int regionChunkZ = chunkZ & this.chunksMask;
+        ReentrantLock lock = this.getChunkLock(regionChunkX, regionChunkY, regionChunkZ);
+        lock.lock();
+        try {
+            ByteBuffer buffer = this.readChunkData(regionChunkX, regionChunkY, regionChunkZ);
+            if (buffer == null || !buffer.hasRemaining())
+                return null;
+            try (DataInputStream dis = CompressionContext.get().decompress(buffer, this.dictionaries)) {
+                return dis.readAllBytes();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Collects the uncompressed data of the chunks of this region, to be used as dictionary training samples.
+     *
+     * @param samples    the collected samples.
+     * @param maxSamples the number of samples at which to stop.
+     */
+    public final void collectSamples(final Collection<byte[]> samples, final int maxSamples) {
+        for (int location = 0; location < this.chunksCount && samples.size() < maxSamples; location++) {
+            if (this.index.getOffset(location) == 0)
+                continue;
+            try {
+                byte[] data = this.getChunkUncompressedData(location & this.chunksMask, location >> (this.chunksShift * 2), (location >> this.chunksShift) & this.chunksMask);
+                if (data != null)
+                    samples.add(data);
+            } catch (IOException ex) {
+                CraftTagRegister.getLogger().log(Level.WARNING, "Skipped unreadable chunk while sampling " + this.regionFile.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Writes a chunk, compressed as chosen by the compression policy.
+     *
+     * @see CompressionPolicy#choose(int, long, boolean)
+     */
     public final void putChunkCompoundTag(final int chunkX, final int chunkY, final int chunkZ, CompoundTag compoundTag) {
-        this.putChunkCompoundTag(chunkX, chunkY, chunkZ, compoundTag, CompressionType.ZSTD);
+        this.putChunkCompoundTag(chunkX, chunkY, chunkZ, compoundTag, null);
     }
 
-    public final void putChunkCompoundTag(final int chunkX, final int chunkY, final int chunkZ, CompoundTag compoundTag, CompressionType compression) {
-        int regionChunkX = chunkX & 31;
-        int regionChunkY = chunkY & 31;
-        int regionChunkZ = chunkZ & 31;
+    /**
+     * Writes a chunk.
+     *
+     * @param compression the compression type, or null to let the compression policy choose it.
+     */
+    public final void putChunkCompoundTag(final int chunkX, final int chunkY, final int chunkZ, CompoundTag compoundTag, @Nullable CompressionType compression) {
+        int regionChunkX = chunkX & this.chunksMask;
+        int regionChunkY = chunkY & this.chunksMask;
+        int regionChunkZ = chunkZ & this.chunksMask;
         if (this.outOfBounds(regionChunkX, regionChunkY, regionChunkZ)) {
             throw new IllegalStateException("Chunk out of bounds!"); // might never happen
         }
-        ReentrantLock lock = this.regionLocks[regionChunkX][regionChunkY][regionChunkZ];
+        ReentrantLock lock = this.getChunkLock(regionChunkX, regionChunkY, regionChunkZ);
         lock.lock();
         try {
             if (compoundTag.isEmpty()) {
@@ -173,23 +675,26 @@ public class RegionFile implements AutoCloseable {
                 return;
             }
 
-            @Cleanup FastByteArrayOutputStream baos = new FastByteArrayOutputStream();
-            baos.writeByte(compression.getVersion());
-
-            @Cleanup FastBufferedOutputStream fbos = switch (compression) {
-                case ZSTD -> new FastBufferedOutputStream(new ZstdOutputStream(baos, 3));
-                case GZIP -> new FastBufferedOutputStream(new GZIPOutputStream(baos));
-                case ZLIB -> new FastBufferedOutputStream(new DeflaterOutputStream(baos));
-                case LZ4 -> new FastBufferedOutputStream(new LZ4BlockOutputStream(baos));
-                case NONE -> new FastBufferedOutputStream(baos);
-            };
-
-            @Cleanup DataOutputStream dos = new DataOutputStream(fbos);
-
-            compoundTag.write(dos, 512);
+            ZstdDictionaryStore.Dictionary activeDictionary = this.dictionaries != null ? this.dictionaries.getActive() : null;
+            int location = this.geometry.location(regionChunkX, regionChunkY, regionChunkZ);
+            if (this.index.getOffset(location) == EXTERNAL_OFFSET) { // likely still too large, streamed to its external file
+                CompressionPolicy.Choice choice = compression != null ? new CompressionPolicy.Choice(compression, CompressionContext.ZSTD_LEVEL)
+                        : this.compressionPolicy.choose(this.index.getUncompressedSize(location), this.secondsSinceWrite(location), activeDictionary != null);
+                if (this.writeExternalChunk(regionChunkX, regionChunkY, regionChunkZ, compoundTag, choice, choice.type() == CompressionType.ZSTD_DICT ? activeDictionary : null))
+                    return;
+            }
 
-            ByteBuffer buffer = ByteBuffer.wrap(baos.array);
-            this.writeChunkData(regionChunkX, regionChunkY, regionChunkZ, buffer.flip(), false);
+            CompressionContext context = CompressionContext.get();
+            int serializedLength = context.serialize(compoundTag);
+            CompressionPolicy.Choice choice = compression != null ? new CompressionPolicy.Choice(compression, CompressionContext.ZSTD_LEVEL)
+                    : this.compressionPolicy.choose(serializedLength, this.secondsSinceWrite(location), activeDictionary != null);
+            // the buffer is reused by the next save on this thread, it's copied before writeChunkData returns
+            ByteBuffer buffer = context.compressSerialized(choice.type(), choice.level(), choice.type() == CompressionType.ZSTD_DICT ? activeDictionary : null);
+            boolean incompressible = compression == null && choice.type() != CompressionType.NONE && this.compressionPolicy.isIncompressible(serializedLength, buffer.remaining());
+            if (incompressible)
+                buffer = context.compressSerialized(CompressionType.NONE, 0, null);
+            this.compressionPolicy.record(CompressionType.valueOf(buffer.get(buffer.position())), serializedLength, buffer.remaining(), incompressible, false);
+            this.writeChunkData(regionChunkX, regionChunkY, regionChunkZ, buffer, false, serializedLength);
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
@@ -197,136 +702,1094 @@ public class RegionFile implements AutoCloseable {
         }
     }
 
+    /**
+     * Reads the raw data of a chunk. The returned buffer is ready to be read (position at 0, limit at data length).
+     * In {@link StorageMode#MAPPED} mode the buffer is a read-only slice of the mapped file, so no copy is made.
+     * The checksum of the data, if it has one, is validated.
+     */
     @Nullable
     public final ByteBuffer readChunkData(final int regionChunkX, final int regionChunkY, final int regionChunkZ) {
         try {
-            int offset = this.getOffset(regionChunkX, regionChunkY, regionChunkZ);
-            if (offset == 0) { // offset is empty, that means the chunk should be too
-                return null;
-            }
-            int sectorNumber = offset >> 8;
-            int sectorsSize = offset & 0xff;
-            if (sectorNumber + sectorsSize > this.sectorsSize.get()) // sectors shouldn't be greater than sectors_free.size
-                throw new IllegalStateException("Invalid sector");
-            long position = CHUNKS_TABLE_SIZE + ((long) sectorNumber * SECTOR_SIZE); // position where the sector should start
-            ByteBuffer chunkSizeBuffer = ByteBuffer.allocate(4);
-            this.fileChannel.read(chunkSizeBuffer, position).get();
-            int length = chunkSizeBuffer.flip().getInt();
-            if (length > SECTOR_SIZE * sectorsSize) // length can't be greater than sectorsSize * sector_size
-                throw new IllegalStateException("Invalid chunk length");
-            ByteBuffer buffer = ByteBuffer.allocate(length);
-            this.fileChannel.read(buffer, position + 4).get();// read data at position (skip 4 bytes for length value)
-            return buffer;
+            return this.readChunkPayload(regionChunkX, regionChunkY, regionChunkZ, true);
         } catch (Exception ex) {
             CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to read chunk data", ex);
         }
         return null;
     }
 
+    @Nullable
+    private ByteBuffer readChunkPayload(final int regionChunkX, final int regionChunkY, final int regionChunkZ, final boolean verify) throws IOException, ExecutionException, InterruptedException {
+        int offset = this.getOffset(regionChunkX, regionChunkY, regionChunkZ);
+        ReadAhead ahead = this.readAhead.remove(this.geometry.location(regionChunkX, regionChunkY, regionChunkZ));
+        if (ahead != null && ahead.payload() != null && ahead.offset() == offset)
+            return ahead.payload(); // its checksum was validated when it was read
+        if (offset == 0) { // offset is empty, that means the chunk should be too
+            return null;
+        }
+        if (offset == EXTERNAL_OFFSET)
+            return this.readExternalData(regionChunkX, regionChunkY, regionChunkZ, verify);
+        int sectorNumber = offset >> 8;
+        int sectorsSize = offset & 0xff;
+        if (sectorNumber + sectorsSize > this.sectorAllocator.getTotalSectors()) // sectors shouldn't be greater than the total sectors
+            throw new IllegalStateException("Invalid sector");
+        long position = this.dataPosition + ((long) sectorNumber * this.sectorSize); // position where the sector should start
+        if (this.writeBatch != null) {
+            ByteBuffer pending = this.writeBatch.getPayload(position); // the chunk may have been written but not flushed yet
+            if (pending != null) {
+                if ((pending.getInt() & CHECKSUM_FLAG) != 0) // skip the length
+                    pending.getInt(); // and the checksum, it was just computed
+                return pending.slice();
+            }
+        }
+        ByteBuffer header;
+        boolean mapped = this.storageMode == StorageMode.MAPPED && position + ((long) sectorsSize * this.sectorSize) <= Integer.MAX_VALUE;
+        if (mapped) {
+            header = this.mapped(position + ((long) sectorsSize * this.sectorSize)).slice((int) position, 8);
+        } else {
+            header = ByteBuffer.allocate(8);
+            this.fileChannel.read(header, position).get();
+            header.flip();
+        }
+        int length = header.getInt(0);
+        boolean checksummed = (length & CHECKSUM_FLAG) != 0;
+        length &= ~CHECKSUM_FLAG;
+        int headerSize = checksummed ? 8 : 4;
+        if (length + headerSize > this.sectorSize * sectorsSize) // length can't be greater than sectorsSize * sector_size
+            throw new IllegalStateException("Invalid chunk length");
+        ByteBuffer buffer;
+        if (mapped) {
+            buffer = this.mapped(position + ((long) sectorsSize * this.sectorSize)).slice((int) position + headerSize, length);
+        } else {
+            buffer = ByteBuffer.allocate(length);
+            this.fileChannel.read(buffer, position + headerSize).get();// read data at position (skip the length and checksum)
+            buffer.flip();
+        }
+        if (checksummed && verify)
+            this.verifyChecksum(buffer, header.getInt(4), regionChunkX, regionChunkY, regionChunkZ);
+        return buffer;
+    }
+
+    /**
+     * Reads ahead the data of chunks about to be read, so the next read of each of them takes it from memory.
+     * The chunks are sorted by their first sector, and chunks stored in adjacent sectors, or separated by a few
+     * sectors, are read at once. Chunks read ahead but not read within a few seconds are dropped.
+     * <p>
+     * In {@link StorageMode#MAPPED} mode nothing is read ahead, chunks are already read from the mapping.
+     *
+     * @param chunks the positions of the chunks, in the world or in the region.
+     * @return the number of chunks read ahead.
+     * @throws IOException if any I/O error occurs.
+     */
+    public final int readAhead(final Collection<ChunkPos> chunks) throws IOException {
+        if (this.storageMode == StorageMode.MAPPED)
+            return 0;
+        long now = System.nanoTime();
+        this.readAhead.values().removeIf(ahead -> now - ahead.time() > READ_AHEAD_EXPIRY);
+        long[] sortedChunks = new long[chunks.size()]; // first sector << 32 | location
+        Int2IntOpenHashMap offsets = new Int2IntOpenHashMap(); // location -> offset
+        int count = 0;
+        for (ChunkPos chunk : chunks) {
+            int location = this.geometry.location(chunk.getX() & this.chunksMask, chunk.getY() & this.chunksMask, chunk.getZ() & this.chunksMask);
+            int offset = this.index.getOffset(location);
+            if (offset == 0 || offset == EXTERNAL_OFFSET || (offset >> 8) + (offset & 0xff) > this.sectorAllocator.getTotalSectors())
+                continue;
+            if (this.writeBatch != null && this.writeBatch.getPayload(this.dataPosition + ((long) (offset >> 8) * this.sectorSize)) != null)
+                continue; // not flushed yet, the read takes it from the batch
+            if (this.readAhead.putIfAbsent(location, new ReadAhead(offset, null, now)) == null) { // pending, a write in between removes it
+                sortedChunks[count++] = ((long) (offset >>> 8) << 32) | location;
+                offsets.put(location, offset);
+            }
+        }
+        Arrays.sort(sortedChunks, 0, count);
+        int readChunks = 0;
+        try {
+            int first = 0;
+            while (first < count) {
+                int startSector = (int) (sortedChunks[first] >>> 32);
+                int endSector = startSector + (offsets.get((int) sortedChunks[first]) & 0xff);
+                int last = first;
+                while (last + 1 < count) {
+                    int nextSector = (int) (sortedChunks[last + 1] >>> 32);
+                    int nextEnd = nextSector + (offsets.get((int) sortedChunks[last + 1]) & 0xff);
+                    if (nextSector < endSector || nextSector - endSector > MAX_READ_AHEAD_GAP || (long) (nextEnd - startSector) * this.sectorSize > MAX_READ_AHEAD_BYTES)
+                        break;
+                    endSector = nextEnd;
+                    last++;
+                }
+                readChunks += this.readAheadRun(sortedChunks, first, last, startSector, endSector, now);
+                first = last + 1;
+            }
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to read ahead chunk data", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading ahead chunk data", ex);
+        } finally {
+            for (int i = 0; i < count; i++) { // drop the ones still pending
+                int location = (int) sortedChunks[i];
+                this.readAhead.computeIfPresent(location, (key, ahead) -> ahead.payload() == null ? null : ahead);
+            }
+        }
+        return readChunks;
+    }
+
+    /**
+     * Reads the sectors of a run of chunks at once, and splits them into the data of each chunk.
+     */
+    private int readAheadRun(final long[] sortedChunks, final int first, final int last, final int startSector, final int endSector, final long now) throws ExecutionException, InterruptedException {
+        long position = this.dataPosition + ((long) startSector * this.sectorSize);
+        ByteBuffer sectors = ByteBuffer.allocate((endSector - startSector) * this.sectorSize);
+        while (sectors.hasRemaining())
+            if (this.fileChannel.read(sectors, position + sectors.position()).get() < 0)
+                break; // the end of the file isn't written yet
+        int readChunks = 0;
+        for (int i = first; i <= last; i++) {
+            int location = (int) sortedChunks[i];
+            ReadAhead pending = this.readAhead.get(location);
+            if (pending == null || pending.payload() != null)
+                continue; // written in between
+            int chunkStart = ((int) (sortedChunks[i] >>> 32) - startSector) * this.sectorSize;
+            if (chunkStart + 8 > sectors.position())
+                continue;
+            int length = sectors.getInt(chunkStart);
+            boolean checksummed = (length & CHECKSUM_FLAG) != 0;
+            length &= ~CHECKSUM_FLAG;
+            int headerSize = checksummed ? 8 : 4;
+            if (length + headerSize > (pending.offset() & 0xff) * this.sectorSize || chunkStart + headerSize + length > sectors.position())
+                continue; // left to the normal read, which reports it
+            ByteBuffer payload = sectors.slice(chunkStart + headerSize, length);
+            if (checksummed) {
+                CRC32C crc = new CRC32C();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != sectors.getInt(chunkStart + 4))
+                    continue;
+            }
+            if (this.readAhead.replace(location, pending, new ReadAhead(pending.offset(), payload, now)))
+                readChunks++;
+        }
+        return readChunks;
+    }
+
+    private void verifyChecksum(final ByteBuffer buffer, final int checksum, final int regionChunkX, final int regionChunkY, final int regionChunkZ) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("Checksum mismatch for chunk " + regionChunkX + ", " + regionChunkY + ", " + regionChunkZ + " in " + this.regionFile.getName());
+    }
+
     public final void writeChunkData(final int regionChunkX, final int regionChunkY, final int regionChunkZ, final ByteBuffer buffer, final boolean emptyChunk) {
+        this.writeChunkData(regionChunkX, regionChunkY, regionChunkZ, buffer, emptyChunk, 0);
+    }
+
+    /**
+     * Writes the raw data of a chunk (compression type, followed by the compressed data).
+     *
+     * @param uncompressedSize the size of the uncompressed data, recorded in the chunk metadata (0 if unknown).
+     */
+    public final void writeChunkData(final int regionChunkX, final int regionChunkY, final int regionChunkZ, final ByteBuffer buffer, final boolean emptyChunk, final int uncompressedSize) {
+        boolean external = !emptyChunk && buffer != null && this.sectorsNeeded(buffer) > MAX_CHUNK_SECTORS;
+        try {
+            if (external) // too large for the region file, the external file is written before the offset points to it
+                this.writeExternalData(regionChunkX, regionChunkY, regionChunkZ, buffer);
+            this.commitChunkData(regionChunkX, regionChunkY, regionChunkZ, emptyChunk || external ? null : buffer, emptyChunk, external, uncompressedSize, this.compressionOf(buffer));
+        } catch (IOException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to write chunk data", ex);
+        }
+    }
+
+    /**
+     * Points the chunk to its new data, through the journal if there is one.
+     *
+     * @param buffer      the chunk data, null if the chunk is empty or external.
+     * @param compression the compression type of the data, recorded in the chunk metadata.
+     */
+    private void commitChunkData(final int regionChunkX, final int regionChunkY, final int regionChunkZ, @Nullable final ByteBuffer buffer, final boolean emptyChunk, final boolean external, final int uncompressedSize, final int compression) throws IOException {
+        if (this.journal == null) {
+            this.applyChunkData(regionChunkX, regionChunkY, regionChunkZ, buffer, emptyChunk, external, uncompressedSize, compression);
+            return;
+        }
+        int location = this.geometry.location(regionChunkX, regionChunkY, regionChunkZ);
+        this.journal.write(this.regionPos, location, buffer, external,
+                () -> this.applyChunkData(regionChunkX, regionChunkY, regionChunkZ, buffer, emptyChunk, external, uncompressedSize, compression));
+    }
+
+    private int compressionOf(@Nullable final ByteBuffer buffer) {
+        return buffer != null && buffer.hasRemaining() ? buffer.get(buffer.position()) : 0;
+    }
+
+    /**
+     * Returns the compression type of a chunk stored in its external file, which the journal doesn't record.
+     */
+    private int externalCompression(final int location) {
+        File externalFile = this.getExternalFile(location & this.chunksMask, location >> (this.chunksShift * 2), (location >> this.chunksShift) & this.chunksMask);
+        try (FileChannel channel = FileChannel.open(externalFile.toPath(), StandardOpenOption.READ)) { // read, not mapped, the file can still be replaced
+            ByteBuffer header = ByteBuffer.allocate(9);
+            while (header.hasRemaining())
+                if (channel.read(header) < 0)
+                    break; // shorter than a header, if it has one
+            header.flip();
+            // raw data starts with the compression type, which never has the checksum flag
+            if (header.remaining() == 9 && (header.getInt(0) & CHECKSUM_FLAG) != 0)
+                return header.get(8);
+            return this.compressionOf(header);
+        } catch (IOException | RuntimeException ex) {
+            CraftTagRegister.getLogger().log(Level.WARNING, "Failed to read the compression of an external chunk in " + this.regionFile.getName(), ex);
+            return 0;
+        }
+    }
+
+    private void applyChunkData(final int regionChunkX, final int regionChunkY, final int regionChunkZ, final ByteBuffer buffer, final boolean emptyChunk, final boolean external, final int uncompressedSize, final int compression) {
+        this.snapshotLock.readLock().lock();
+        int location = this.geometry.location(regionChunkX, regionChunkY, regionChunkZ);
+        this.readAhead.remove(location);
+        this.chunkVersions.incrementAndGet(location & (CHUNK_LOCK_STRIPES - 1)); // asynchronous reads of the stripe read again
         try {
             int offset = this.getOffset(regionChunkX, regionChunkY, regionChunkZ);
+            boolean wasExternal = offset == EXTERNAL_OFFSET;
+            if (this.isPinned(location, offset))
+                offset = 0; // the sectors are still read by the snapshot, never overwrite nor release them
             int sectorNumber = offset >> 8;
             int sectorsSize = offset & 0xff;
-            if (emptyChunk) {
+            int lastModified = (int) (System.currentTimeMillis() / 1000);
+            if (emptyChunk || external) {
                 /* mark the sectors previously used for this chunk as free */
-                for (int sector = 0; sector < sectorsSize; sector++)
-                    this.freeSectors.set(sectorNumber + sector, SECTOR_FREE);
-                this.setOffset(regionChunkX, regionChunkY, regionChunkZ, 0); // mark offset as empty
+                this.releaseSectors(sectorNumber, sectorsSize);
+                this.releaseFreeTail();
+                this.setOffset(regionChunkX, regionChunkY, regionChunkZ, external ? EXTERNAL_OFFSET : 0); // mark offset as empty, or external
+                if (external)
+                    this.setMetadata(location, lastModified, uncompressedSize, compression);
+                else
+                    this.setMetadata(location, 0, 0, 0);
+                if (emptyChunk && wasExternal)
+                    this.deleteExternalData(regionChunkX, regionChunkY, regionChunkZ);
                 return;
             }
             if (buffer == null)
                 throw new IllegalArgumentException("Buffer can't be null");
-            if (!buffer.hasArray())
+            if (!buffer.hasRemaining())
                 throw new IllegalArgumentException("Buffer can't be empty!");
-            int sectorsNeeded = ((buffer.array().length + 4) / SECTOR_SIZE) + 1; // sectors needed means data length + 4 skipped bytes / SECTOR_SIZE (+ 1 because sectors needed can't be 0)
-            if (sectorsNeeded > 256) // invalid length of sectors
-                return;
-            //noinspection StatementWithEmptyBody
+            int sectorsNeeded = this.sectorsNeeded(buffer);
+            if (sectorsNeeded > MAX_CHUNK_SECTORS) // only external chunks can be that large
+                throw new IllegalArgumentException("Chunk data too large for the region file");
             if (sectorsNeeded == sectorsSize) { // sectors needed are equals to sectorsSize, simply overwrite them
                 //debug("SAVE", regionChunkX, regionChunkY, regionChunkZ, length, "rewrite");
+                this.writeData(sectorNumber, buffer);
+                this.setMetadata(location, lastModified, uncompressedSize, compression);
             } else {
 
                 /* we need to allocate new sectors or reallocate the existing ones */
                 /* mark the sectors previously used for this chunk as free */
-                for (int sector = 0; sector < sectorsSize; sector++)
-                    this.freeSectors.set(sectorNumber + sector, SECTOR_FREE);
-                /* scan for a free space large enough to store this chunk */
-                int runStart = 0;
-                int runLength = 0;
-                for (int next = 0; next < this.freeSectors.length(); next++) {
-                    if (this.freeSectors.get(next) == SECTOR_FREE) {
-                        if (runLength != 0) {
-                            runLength++;
-                        } else {
-                            runStart = next;
-                            runLength = 1;
-                        }
-                    } else
-                        runLength = 0;
-                    if (runLength >= sectorsNeeded)
-                        break;
-                }
-                if (runLength >= sectorsNeeded) {
-                    /* we found a free space large enough */
-                    //debug("SAVE", regionChunkX, regionChunkY, regionChunkZ, length, "reuse");
-                    sectorNumber = runStart;
-                } else {
-                    /* no free space large enough found -- we need to grow the file */
-                    //debug("SAVE", regionChunkX, regionChunkY, regionChunkZ, length, "grow");
-                    sectorNumber = this.sectorsSize.get();
-                    // increase sectors size
-                    this.sectorsSize.addAndGet(sectorsNeeded);
-                    // increase file size
-                    for (int sector = 0; sector < sectorsNeeded; sector++)
-                        this.fileChannel.write(ByteBuffer.allocate(SECTOR_SIZE), ((long) (sectorNumber + sector) * SECTOR_SIZE) + CHUNKS_TABLE_SIZE);
+                this.releaseSectors(sectorNumber, sectorsSize);
+                /* find a free space large enough to store this chunk, or grow the file */
+                synchronized (this.sectorAllocator) { // a compaction can't truncate the file in between
+                    sectorNumber = this.sectorAllocator.allocate(sectorsNeeded);
+                    this.ensureFileSectors(sectorNumber + sectorsNeeded);
                 }
-                /* mark allocated/new sectors as not free */
-                for (int sector = 0; sector < sectorsNeeded; sector++)
-                    this.freeSectors.set(sectorNumber + sector, SECTOR_NOT_FREE);
+                /* write the data before pointing the offset to it */
+                this.writeData(sectorNumber, buffer);
                 this.setOffset(regionChunkX, regionChunkY, regionChunkZ, (sectorNumber << 8 | sectorsNeeded));
+                this.setMetadata(location, lastModified, uncompressedSize, compression);
+                if (wasExternal) // the chunk fits in the region file again
+                    this.deleteExternalData(regionChunkX, regionChunkY, regionChunkZ);
+                this.releaseFreeTail();
             }
-            this.writeData(sectorNumber, buffer);
         } catch (Exception ex) {
             CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to write chunk data", ex);
+        } finally {
+            this.readAhead.remove(location); // read ahead while it was written
+            this.chunkVersions.incrementAndGet(location & (CHUNK_LOCK_STRIPES - 1));
+            this.snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Grows the file, if it has less than {@code sectors} sectors, by at least {@link #preallocationSectors} sectors.
+     * The new sectors are zeroed in a single write (per MiB), so bursts of new chunks don't each grow the file.
+     * Must be called while holding the allocator monitor.
+     */
+    private void ensureFileSectors(final int sectors) throws IOException, ExecutionException, InterruptedException {
+        long fileSectors = (this.fileChannel.size() - this.dataPosition) / this.sectorSize;
+        if (sectors <= fileSectors)
+            return;
+        long position = this.dataPosition + (fileSectors * this.sectorSize);
+        long end = this.dataPosition + (Math.max(sectors, fileSectors + this.preallocationSectors) * this.sectorSize);
+        while (position < end) {
+            ByteBuffer zeroes = ZEROES.duplicate().limit((int) Math.min(ZEROES.capacity(), end - position));
+            position += this.fileChannel.write(zeroes, position).get();
+        }
+    }
+
+    /**
+     * Truncates the free sectors at the end of the file once there are more than twice {@link #preallocationSectors}
+     * of them, keeping {@link #preallocationSectors} preallocated. The sectors past the allocator ones (left by a
+     * previous growth) count as free.
+     * <p>
+     * The JDK has no portable way to punch holes in a file, so freed sectors before the last used one are only given
+     * back to the filesystem by a compaction.
+     */
+    private void releaseFreeTail() throws IOException {
+        synchronized (this.sectorAllocator) {
+            long fileSectors = (this.fileChannel.size() - this.dataPosition) / this.sectorSize;
+            long freeTail = this.sectorAllocator.getTailFreeSectors() + (fileSectors - this.sectorAllocator.getTotalSectors());
+            if (freeTail <= 2L * this.preallocationSectors)
+                return;
+            int totalSectors = this.sectorAllocator.trimTail();
+            this.fileChannel.truncate(this.dataPosition + ((long) (totalSectors + this.preallocationSectors) * this.sectorSize));
+        }
+    }
+
+    /**
+     * Returns the number of seconds since the last write of a chunk, or -1 if it was never written (or is unknown).
+     */
+    private long secondsSinceWrite(final int location) {
+        long lastModified = Integer.toUnsignedLong(this.index.getLastModified(location));
+        return lastModified == 0 ? -1 : Math.max(0, System.currentTimeMillis() / 1000 - lastModified);
+    }
+
+    /**
+     * Recompresses the data of a cold chunk with the cold Zstd level. The serialized length is left in the compression
+     * context of the thread.
+     *
+     * @return the recompressed data, valid until the next compression on this thread, or null if it isn't smaller.
+     */
+    @Nullable
+    private ByteBuffer recompressCold(final ByteBuffer buffer) {
+        try {
+            CompressionContext context = CompressionContext.get();
+            context.decompressSerialized(buffer.duplicate(), this.dictionaries);
+            ZstdDictionaryStore.Dictionary activeDictionary = this.dictionaries != null ? this.dictionaries.getActive() : null;
+            CompressionPolicy.Choice choice = this.compressionPolicy.chooseCold(activeDictionary != null);
+            ByteBuffer cold = context.compressSerialized(choice.type(), choice.level(), activeDictionary);
+            // only worth storing if the cold level actually shrinks it, compared to the data stored at the usual level
+            return cold.remaining() < buffer.remaining() ? cold : null;
+        } catch (IOException ex) {
+            CraftTagRegister.getLogger().log(Level.WARNING, "Failed to recompress chunk data in " + this.regionFile.getName(), ex);
+            return null;
         }
     }
 
-    private void writeData(final int sectorNumber, final ByteBuffer buffer) throws ExecutionException, InterruptedException {
-        long position = CHUNKS_TABLE_SIZE + ((long) sectorNumber * SECTOR_SIZE);
-        Future<Integer> nonWaitingFuture = this.fileChannel.write(ByteBuffer.allocate(4).putInt(buffer.array().length).flip(), position);
-        this.fileChannel.write(buffer, position + 4).get();
-        nonWaitingFuture.get(); // doesn't wait until the main buffer is done, improvement: 0.0001%
+    /**
+     * Returns whether the sectors of a chunk are pinned by the attached snapshot, which means the chunk wasn't
+     * written since it was captured.
+     */
+    private boolean isPinned(final int location, final int offset) {
+        RegionSnapshot snapshot = this.snapshot;
+        return snapshot != null && offset != 0 && offset != EXTERNAL_OFFSET && snapshot.getCapturedOffset(location) == offset;
+    }
+
+    private int sectorsNeeded(final ByteBuffer buffer) {
+        int headerSize = this.checksums ? 8 : 4; // length, and checksum
+        return ((buffer.remaining() + headerSize) / this.sectorSize) + 1; // sectors needed means data length + header skipped bytes / sector size (+ 1 because sectors needed can't be 0)
+    }
+
+    /**
+     * Returns the file storing a chunk too large for the region file, named after the chunk coordinates.
+     */
+    private File getExternalFile(final int regionChunkX, final int regionChunkY, final int regionChunkZ) {
+        return new File(this.regionFile.getParentFile(), "c." + ((this.regionPos.getX() << this.chunksShift) + regionChunkX) + "." + ((this.regionPos.getY() << this.chunksShift) + regionChunkY) + "." + ((this.regionPos.getZ() << this.chunksShift) + regionChunkZ) + ".tag");
+    }
+
+    /**
+     * Writes the data of a chunk to its external file, straight from the buffer. The data is written to a temporary
+     * file first, so the external file is always either the previous or the new data.
+     * With checksums, the data is preceded by its length and checksum, like in the region file.
+     */
+    private void writeExternalData(final int regionChunkX, final int regionChunkY, final int regionChunkZ, final ByteBuffer buffer) throws IOException {
+        Path externalFile = this.getExternalFile(regionChunkX, regionChunkY, regionChunkZ).toPath();
+        Path tempFile = externalFile.resolveSibling(externalFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = buffer.duplicate();
+            ByteBuffer header = ByteBuffer.allocate(0);
+            if (this.checksums) {
+                CRC32C crc = new CRC32C();
+                crc.update(buffer.duplicate());
+                header = ByteBuffer.allocate(8).putInt(data.remaining() | CHECKSUM_FLAG).putInt((int) crc.getValue()).flip();
+            }
+            ByteBuffer[] buffers = {header, data};
+            while (data.hasRemaining())
+                channel.write(buffers);
+            channel.force(false);
+        }
+        Files.move(tempFile, externalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes a chunk to its external file, serialized and compressed as it's written, so its data is never held in
+     * memory. The length and checksum are only known at the end, they're written over a placeholder at the start of the
+     * file. If the chunk turns out to fit in the region file again, nothing is written.
+     *
+     * @return true if the chunk was written, false if it must be written to the region file.
+     */
+    private boolean writeExternalChunk(final int regionChunkX, final int regionChunkY, final int regionChunkZ, final CompoundTag compoundTag, final CompressionPolicy.Choice choice, @Nullable final ZstdDictionaryStore.Dictionary dictionary) throws IOException {
+        Path externalFile = this.getExternalFile(regionChunkX, regionChunkY, regionChunkZ).toPath();
+        Path tempFile = externalFile.resolveSibling(externalFile.getFileName() + ".tmp");
+        int headerSize = this.checksums ? 8 : 0;
+        int serializedLength;
+        ExternalDataOutput output;
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            output = new ExternalDataOutput(channel, headerSize);
+            serializedLength = CompressionContext.get().compressTo(compoundTag, choice.type(), choice.level(), dictionary, output);
+            if (output.length + (this.checksums ? 8 : 4) < (long) MAX_CHUNK_SECTORS * this.sectorSize) { // see sectorsNeeded
+                Files.delete(tempFile);
+                return false;
+            }
+            if (output.length > ~CHECKSUM_FLAG)
+                throw new IOException("Chunk data too large: " + output.length + " bytes");
+            if (this.checksums) {
+                ByteBuffer header = ByteBuffer.allocate(8).putInt((int) output.length | CHECKSUM_FLAG).putInt((int) output.crc.getValue()).flip();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+            }
+            channel.force(false);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        }
+        Files.move(tempFile, externalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.compressionPolicy.record(CompressionType.valueOf(output.compression), serializedLength, (int) output.length, false, false);
+        this.commitChunkData(regionChunkX, regionChunkY, regionChunkZ, null, false, true, serializedLength, output.compression);
+        return true;
+    }
+
+    /**
+     * Writes chunk data to a channel after its header, computing its length and checksum as it's written.
+     */
+    private static final class ExternalDataOutput extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final CRC32C crc = new CRC32C();
+        private long position;
+        private long length;
+        private int compression = -1; // the first byte written
+
+        private ExternalDataOutput(final FileChannel channel, final int headerSize) {
+            this.channel = channel;
+            this.position = headerSize;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!this.buffer.hasRemaining())
+                this.flush();
+            if (this.compression < 0)
+                this.compression = b & 0xff;
+            this.buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return;
+            if (this.compression < 0)
+                this.compression = b[off] & 0xff;
+            if (len > this.buffer.remaining()) {
+                this.flush();
+                if (len > this.buffer.capacity()) { // written straight from the array
+                    this.writeFully(ByteBuffer.wrap(b, off, len));
+                    return;
+                }
+            }
+            this.buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.writeFully(this.buffer.flip());
+            this.buffer.clear();
+        }
+
+        private void writeFully(final ByteBuffer data) throws IOException {
+            this.crc.update(data.duplicate());
+            this.length += data.remaining();
+            while (data.hasRemaining())
+                this.position += this.channel.write(data, this.position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush(); // the channel is closed by the caller
+        }
+    }
+
+    /**
+     * Maps the external file of a chunk, so it's decompressed as it's read instead of being loaded in memory.
+     */
+    private ByteBuffer readExternalData(final int regionChunkX, final int regionChunkY, final int regionChunkZ, final boolean verify) throws IOException {
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(this.getExternalFile(regionChunkX, regionChunkY, regionChunkZ).toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // the mapping outlives the channel
+        }
+        // raw data starts with the compression type, which never has the checksum flag
+        if (mapped.remaining() < 8 || (mapped.getInt(0) & CHECKSUM_FLAG) == 0)
+            return mapped;
+        int length = mapped.getInt(0) & ~CHECKSUM_FLAG;
+        if (length + 8 != mapped.remaining())
+            throw new IllegalStateException("Invalid chunk length");
+        ByteBuffer buffer = mapped.slice(8, length);
+        if (verify)
+            this.verifyChecksum(buffer, mapped.getInt(4), regionChunkX, regionChunkY, regionChunkZ);
+        return buffer;
+    }
+
+    private void deleteExternalData(final int regionChunkX, final int regionChunkY, final int regionChunkZ) throws IOException {
+        Files.deleteIfExists(this.getExternalFile(regionChunkX, regionChunkY, regionChunkZ).toPath());
+    }
+
+    private void writeData(final int sectorNumber, final ByteBuffer buffer) throws ExecutionException, InterruptedException, IOException {
+        long position = this.dataPosition + ((long) sectorNumber * this.sectorSize);
+        // length prefix, checksum and payload in a single write
+        ByteBuffer data;
+        if (this.checksums) {
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate());
+            data = ByteBuffer.allocate(8 + buffer.remaining()).putInt(buffer.remaining() | CHECKSUM_FLAG).putInt((int) crc.getValue()).put(buffer).flip();
+        } else {
+            data = ByteBuffer.allocate(4 + buffer.remaining()).putInt(buffer.remaining()).put(buffer).flip();
+        }
+        if (this.writeBatch != null) {
+            this.writeBatch.putPayload(position, data);
+            if (this.writeBatch.getPendingBytes() >= this.maxBatchedBytes)
+                this.writeBatch.flush();
+            return;
+        }
+        this.fileChannel.write(data, position).get();
         //this.file_channel.force(false);
     }
 
+    private void releaseSectors(final int sectorNumber, final int sectorsSize) {
+        if (sectorsSize == 0)
+            return;
+        this.sectorAllocator.free(sectorNumber, sectorsSize);
+        if (this.writeBatch != null) // don't write a payload nobody points to anymore
+            this.writeBatch.discardPayload(this.dataPosition + ((long) sectorNumber * this.sectorSize));
+    }
+
+    /**
+     * Writes everything queued by the write batching, if enabled.
+     *
+     * @throws IOException if any I/O error occurs.
+     */
+    public final void flush() throws IOException {
+        if (this.writeBatch != null)
+            this.writeBatch.flush();
+    }
+
+    /**
+     * Flushes the pending writes and forces the file content to the disk.
+     *
+     * @throws IOException if any I/O error occurs.
+     */
+    public final void force() throws IOException {
+        this.flush();
+        this.fileChannel.force(false);
+    }
+
+    /**
+     * Returns the current mapping of the file, remapping it if it doesn't cover {@code requiredSize} bytes yet.
+     * Growing the file invalidates nothing, older mappings stay valid for the part they cover.
+     */
+    private MappedByteBuffer mapped(final long requiredSize) throws IOException {
+        MappedByteBuffer buffer = this.mappedBuffer;
+        if (buffer != null && buffer.capacity() >= requiredSize)
+            return buffer;
+        synchronized (this.remapLock) {
+            buffer = this.mappedBuffer;
+            if (buffer == null || buffer.capacity() < requiredSize) {
+                long size = Math.min(this.mappedChannel.size(), Integer.MAX_VALUE);
+                if (size < requiredSize)
+                    throw new IllegalStateException("Mapped region is outside of the file");
+                buffer = this.mappedChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                this.mappedBuffer = buffer;
+            }
+            return buffer;
+        }
+    }
+
+    public final SectorAllocator getSectorAllocator() {
+        return this.sectorAllocator;
+    }
+
+    /**
+     * Returns the fragmentation of the free sectors of this file.
+     *
+     * @see SectorAllocator#getFragmentation()
+     */
+    public final double getFragmentation() {
+        return this.sectorAllocator.getFragmentation();
+    }
+
+    /**
+     * Compacts this file: chunks are moved, last ones first, to free runs closer to the beginning of the file,
+     * and the free sectors left at the end of the file are truncated.
+     * <p>
+     * A chunk is only moved while holding its lock, and chunks locked by a reader or writer are skipped instead of
+     * waited for. The sectors a chunk was moved from are only released once its new offset was forced to the disk.
+     *
+     * @param bytesPerSecond the I/O budget of the compaction, in bytes moved per second.
+     * @return the number of chunks moved and bytes reclaimed.
+     * @throws IOException if any I/O error occurs.
+     */
+    public final CompactionResult compact(final long bytesPerSecond) throws IOException {
+        this.compactionLock.lock();
+        try {
+            long sizeBefore = this.fileChannel.size();
+            // chunk locations, ordered by their first sector, last ones first
+            IntArrayList locations = new IntArrayList();
+            for (int location = 0; location < this.chunksCount; location++) {
+                int offset = this.index.getOffset(location);
+                if (offset != 0 && offset != EXTERNAL_OFFSET)
+                    locations.add(location);
+            }
+            locations.sort((first, second) -> Integer.compare(this.index.getOffset(second) >>> 8, this.index.getOffset(first) >>> 8));
+
+            IntArrayList moved = new IntArrayList(); // first sector and sectors count of the moved chunks
+            long movedBytes = 0;
+            long startTime = System.nanoTime();
+            for (int i = 0; i < locations.size() && !this.closed; i++) {
+                int location = locations.getInt(i);
+                int regionChunkX = location & this.chunksMask, regionChunkY = location >> (this.chunksShift * 2), regionChunkZ = (location >> this.chunksShift) & this.chunksMask;
+                ReentrantLock lock = this.getChunkLock(regionChunkX, regionChunkY, regionChunkZ);
+                if (!lock.tryLock())
+                    continue;
+                this.snapshotLock.readLock().lock();
+                try {
+                    int offset = this.index.getOffset(location);
+                    int sectorNumber = offset >> 8;
+                    int sectorsSize = offset & 0xff;
+                    if (offset == 0 || offset == EXTERNAL_OFFSET)
+                        continue; // the chunk changed since the locations were collected
+                    if (this.isPinned(location, offset))
+                        continue; // still read by the snapshot
+                    ByteBuffer buffer = this.readChunkData(regionChunkX, regionChunkY, regionChunkZ);
+                    if (buffer == null)
+                        continue; // unreadable, left for the verifier
+                    int sectorsNeeded = this.sectorsNeeded(buffer); // can differ from sectorsSize if checksums were toggled
+                    if (sectorsNeeded > MAX_CHUNK_SECTORS)
+                        continue;
+                    int target = this.sectorAllocator.allocateBelow(sectorsNeeded, sectorNumber); // recompressing only shrinks it
+                    if (target == -1)
+                        continue; // no free run before this chunk is large enough
+                    boolean recompressed = false;
+                    int serializedLength = 0;
+                    if (this.compressionPolicy.isCold(this.secondsSinceWrite(location))) { // moved anyway, stored smaller
+                        ByteBuffer cold = this.recompressCold(buffer);
+                        if (cold != null) {
+                            buffer = cold;
+                            recompressed = true;
+                            serializedLength = CompressionContext.get().getSerializedLength();
+                            int coldSectors = this.sectorsNeeded(cold);
+                            if (coldSectors < sectorsNeeded) { // the rest of the run was free, and still is
+                                this.sectorAllocator.free(target + coldSectors, sectorsNeeded - coldSectors);
+                                sectorsNeeded = coldSectors;
+                            }
+                        }
+                    }
+                    byte compression = buffer.get(buffer.position()); // before writeData consumes the buffer
+                    int storedLength = buffer.remaining();
+                    this.chunkVersions.incrementAndGet(location & (CHUNK_LOCK_STRIPES - 1));
+                    try {
+                        this.writeData(target, buffer);
+                        this.setOffset(regionChunkX, regionChunkY, regionChunkZ, target << 8 | sectorsNeeded);
+                        if (recompressed)
+                            this.setMetadata(location, this.index.getLastModified(location), this.index.getUncompressedSize(location), compression);
+                    } finally {
+                        this.chunkVersions.incrementAndGet(location & (CHUNK_LOCK_STRIPES - 1));
+                    }
+                    if (recompressed)
+                        this.compressionPolicy.record(CompressionType.valueOf(compression), serializedLength, storedLength, false, true);
+                    moved.add(sectorNumber);
+                    moved.add(sectorsSize);
+                    movedBytes += (long) sectorsNeeded * this.sectorSize;
+                } catch (ExecutionException ex) {
+                    throw new IOException("Failed to move chunk data", ex.getCause());
+                } finally {
+                    this.snapshotLock.readLock().unlock();
+                    lock.unlock();
+                }
+                // stay within the I/O budget
+                long aheadNanos = (movedBytes * 1_000_000_000L / bytesPerSecond) - (System.nanoTime() - startTime);
+                if (aheadNanos > 0)
+                    TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            }
+
+            this.force(); // the old sectors can't be reused before the new offsets are on the disk
+            for (int i = 0; i < moved.size(); i += 2)
+                this.sectorAllocator.free(moved.getInt(i), moved.getInt(i + 1));
+            synchronized (this.sectorAllocator) {
+                int totalSectors = this.sectorAllocator.trimTail();
+                this.fileChannel.truncate(this.dataPosition + ((long) totalSectors * this.sectorSize));
+            }
+            return new CompactionResult(moved.size() / 2, Math.max(0, sizeBefore - this.fileChannel.size()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compacting " + this.regionFile.getName(), ex);
+        } finally {
+            this.compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Verifies every chunk of this file: its checksum, if it has one, is validated, and its data is decompressed and
+     * parsed. If asked, corrupted chunks are quarantined: their raw data is moved to the {@code quarantine} directory,
+     * next to the region file, and the chunk is cleared.
+     *
+     * @param quarantine true to quarantine corrupted chunks.
+     * @return the number of chunks verified and found corrupted.
+     */
+    public final VerificationResult verify(final boolean quarantine) {
+        if (!this.opened)
+            return VerificationResult.failed(this.regionPos, this.openFailure);
+        int verifiedChunks = 0, corruptedChunks = 0;
+        for (int location = 0; location < this.chunksCount && !this.closed; location++) {
+            if (this.index.getOffset(location) == 0)
+                continue;
+            int regionChunkX = location & this.chunksMask, regionChunkY = location >> (this.chunksShift * 2), regionChunkZ = (location >> this.chunksShift) & this.chunksMask;
+            ReentrantLock lock = this.getChunkLock(regionChunkX, regionChunkY, regionChunkZ);
+            lock.lock();
+            try {
+                verifiedChunks++;
+                try {
+                    ByteBuffer buffer = this.readChunkPayload(regionChunkX, regionChunkY, regionChunkZ, true);
+                    if (buffer != null) {
+                        try (DataInputStream dis = CompressionContext.get().decompress(buffer, this.dictionaries)) {
+                            TagReader.skipCompound(dis); // parsed, but no tag is built
+                        }
+                    }
+                    continue;
+                } catch (Exception ex) {
+                    CraftTagRegister.getLogger().log(Level.WARNING, "Corrupted chunk " + regionChunkX + ", " + regionChunkY + ", " + regionChunkZ + " in " + this.regionFile.getName(), ex);
+                }
+                corruptedChunks++;
+                if (quarantine)
+                    this.quarantineChunk(regionChunkX, regionChunkY, regionChunkZ);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return new VerificationResult(this.regionPos, verifiedChunks, corruptedChunks);
+    }
+
+    private void quarantineChunk(final int regionChunkX, final int regionChunkY, final int regionChunkZ) {
+        try {
+            File externalFile = this.getExternalFile(regionChunkX, regionChunkY, regionChunkZ);
+            Path quarantined = new File(new File(this.regionFile.getParentFile(), "quarantine"), externalFile.getName()).toPath();
+            Files.createDirectories(quarantined.getParent());
+            int offset = this.getOffset(regionChunkX, regionChunkY, regionChunkZ);
+            if (offset == EXTERNAL_OFFSET) {
+                Files.move(externalFile.toPath(), quarantined, StandardCopyOption.REPLACE_EXISTING);
+            } else { // the raw sectors, header included, as they may not even have a valid length
+                long position = this.dataPosition + ((long) (offset >> 8) * this.sectorSize);
+                ByteBuffer sectors = ByteBuffer.allocate((int) Math.max(0, Math.min((long) (offset & 0xff) * this.sectorSize, this.fileChannel.size() - position)));
+                this.fileChannel.read(sectors, position).get();
+                Files.write(quarantined, sectors.array());
+            }
+            this.writeChunkData(regionChunkX, regionChunkY, regionChunkZ, null, true);
+        } catch (IOException | ExecutionException | InterruptedException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to quarantine chunk " + regionChunkX + ", " + regionChunkY + ", " + regionChunkZ + " in " + this.regionFile.getName(), ex);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the chunks of this file written since a given time, and attaches it to this file: until it's
+     * released, writes to the captured chunks go to new sectors and their sectors are neither reused nor compacted.
+     * Pending writes are flushed first, so the snapshot can read the captured chunks from the disk.
+     * An already attached snapshot is released.
+     *
+     * @param since the time, in seconds since the epoch, from which chunks are captured (0 to capture every chunk).
+     * @return the snapshot.
+     * @throws IOException if any I/O error occurs.
+     */
+    public final RegionSnapshot snapshot(final long since) throws IOException {
+        this.snapshotLock.writeLock().lock();
+        try {
+            this.releaseSnapshot();
+            this.flush();
+            RegionSnapshot snapshot = new RegionSnapshot(this.regionPos, this.regionFile, this.geometry, since);
+            for (int location = 0; location < this.chunksCount; location++) {
+                int offset = this.index.getOffset(location);
+                if (offset == 0)
+                    continue;
+                snapshot.markPresent(location);
+                long lastModified = Integer.toUnsignedLong(this.index.getLastModified(location));
+                if (lastModified != 0 && lastModified < since)
+                    continue; // unchanged since the previous snapshot
+                ByteBuffer externalChunk = offset == EXTERNAL_OFFSET ? this.readExternalData(location & this.chunksMask, location >> (this.chunksShift * 2), (location >> this.chunksShift) & this.chunksMask, false) : null;
+                snapshot.capture(location, offset, (int) lastModified, this.index.getUncompressedSize(location), externalChunk);
+            }
+            this.snapshot = snapshot;
+            return snapshot;
+        } finally {
+            this.snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Attaches a snapshot taken by a previous instance of this file, before it was closed: the sectors it captured are
+     * reserved again, whether they are still used by their chunk or not.
+     *
+     * @param snapshot the snapshot.
+     */
+    public final void attachSnapshot(final RegionSnapshot snapshot) {
+        this.snapshotLock.writeLock().lock();
+        try {
+            this.releaseSnapshot();
+            int totalSectors = this.sectorAllocator.getTotalSectors();
+            IntArrayList locations = snapshot.getCapturedLocations();
+            for (int i = 0; i < locations.size(); i++) {
+                int offset = snapshot.getCapturedOffset(locations.getInt(i));
+                if (offset != EXTERNAL_OFFSET && (offset >> 8) + (offset & 0xff) <= totalSectors)
+                    this.sectorAllocator.markUsed(offset >> 8, offset & 0xff);
+            }
+            this.sectorAllocator.rebuildFreeRuns();
+            this.snapshot = snapshot;
+        } finally {
+            this.snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Releases the attached snapshot, if any: the captured sectors no longer used by their chunk are freed.
+     */
+    public final void releaseSnapshot() {
+        this.snapshotLock.writeLock().lock();
+        try {
+            RegionSnapshot snapshot = this.snapshot;
+            if (snapshot == null)
+                return;
+            this.snapshot = null;
+            IntArrayList locations = snapshot.getCapturedLocations();
+            for (int i = 0; i < locations.size(); i++) {
+                int location = locations.getInt(i);
+                int offset = snapshot.getCapturedOffset(location);
+                if (offset != EXTERNAL_OFFSET && this.index.getOffset(location) != offset)
+                    this.releaseSectors(offset >> 8, offset & 0xff);
+            }
+        } finally {
+            this.snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the data of a chunk from a channel of a region file, for readers that don't go through a region file
+     * instance (snapshots). The checksum of the data, if it has one, is validated.
+     *
+     * @param channel  the channel.
+     * @param geometry the geometry of the region file.
+     * @param offset   the offset of the chunk.
+     * @return the chunk data.
+     * @throws IOException if any I/O error occurs, or if the data is corrupted.
+     */
+    static ByteBuffer readPayload(final FileChannel channel, final Geometry geometry, final int offset) throws IOException {
+        long position = geometry.dataPosition() + ((long) (offset >> 8) * geometry.sectorSize());
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (header.hasRemaining())
+            if (channel.read(header, position + header.position()) < 0)
+                throw new IOException("Chunk data is outside of the file");
+        int length = header.getInt(0);
+        boolean checksummed = (length & CHECKSUM_FLAG) != 0;
+        length &= ~CHECKSUM_FLAG;
+        int headerSize = checksummed ? 8 : 4;
+        if (length + headerSize > geometry.sectorSize() * (offset & 0xff))
+            throw new IOException("Invalid chunk length");
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + headerSize + buffer.position()) < 0)
+                throw new IOException("Chunk data is outside of the file");
+        buffer.flip();
+        if (checksummed) {
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != header.getInt(4))
+                throw new IOException("Checksum mismatch for a chunk at sector " + (offset >> 8));
+        }
+        return buffer;
+    }
+
+    private ReentrantLock getChunkLock(final int regionChunkX, final int regionChunkY, final int regionChunkZ) {
+        return this.chunkLocks[this.geometry.location(regionChunkX, regionChunkY, regionChunkZ) & (CHUNK_LOCK_STRIPES - 1)];
+    }
+
     public final boolean outOfBounds(final int x, final int y, final int z) {
-        return x < 0 || x >= 32 || y < 0 || y >= 32 || z < 0 || z >= 32;
+        return x < 0 || x > this.chunksMask || y < 0 || y > this.chunksMask || z < 0 || z > this.chunksMask;
     }
 
     public final int getOffset(final int x, final int y, final int z) {
-        int location = x + (z * 32) + (y * 1024);
-        return this.offsets.get(location);
+        int location = this.geometry.location(x, y, z);
+        return this.index.getOffset(location);
     }
 
     public final void setOffset(final int x, final int y, final int z, final int offset) throws ExecutionException, InterruptedException {
         if (this.outOfBounds(x, y, z))
             throw new RuntimeException("Out of bounds!");
-        int location = x + (z * 32) + (y * 1024);
-        this.offsets.set(location, offset);
-        long position = (long) location * OFFSET_LENGTH;
+        int location = this.geometry.location(x, y, z);
+        this.index.setOffset(location, offset);
+        if (this.writeBatch != null) {
+            this.writeBatch.putHeaderEntry(location, offset);
+            return;
+        }
+        long position = this.geometry.offsetsPosition() + ((long) location * OFFSET_LENGTH);
         this.fileChannel.write(ByteBuffer.allocate(OFFSET_LENGTH).putInt(offset).flip(), position).get();
     }
 
+    private void setMetadata(final int location, final int lastModified, final int uncompressedSize, final int compression) throws ExecutionException, InterruptedException {
+        this.index.setMetadata(location, lastModified, uncompressedSize, compression);
+        if (this.writeBatch != null) {
+            this.writeBatch.putHeaderEntry(this.chunksCount + location * 3, lastModified);
+            this.writeBatch.putHeaderEntry(this.chunksCount + location * 3 + 1, uncompressedSize);
+            this.writeBatch.putHeaderEntry(this.chunksCount + location * 3 + 2, compression);
+            return;
+        }
+        long position = this.geometry.metadataPosition() + ((long) location * METADATA_LENGTH);
+        this.fileChannel.write(ByteBuffer.allocate(METADATA_LENGTH).putInt(lastModified).putInt(uncompressedSize).putInt(compression).flip(), position).get();
+    }
+
     @Override
     public final void close() throws IOException {
-        this.fileChannel.close();
-        if (this.fileLock != null && this.fileLock.isValid())
-            this.fileLock.release();
+        this.closed = true; // stops a running compaction, after its current chunk
+        this.compactionLock.lock();
+        try {
+            if (!this.opened) // nothing was read or written
+                return;
+            if (this.journal != null)
+                this.force(); // the journal may drop the records of this region at the next checkpoint
+            else
+                this.flush();
+        } finally {
+            if (this.fileChannel != null)
+                this.fileChannel.close();
+            if (this.mappedChannel != null) {
+                this.mappedChannel.close();
+                this.mappedBuffer = null;
+            }
+            if (this.fileLock != null && this.fileLock.isValid())
+                this.fileLock.release();
+            this.compactionLock.unlock();
+        }
+    }
+
+    /**
+     * The geometry of a region file, recorded in its header: the size of its sectors, and the number of chunks on each
+     * side of the region ({@code 1 << chunksShift}). The position of the tables and of the first sector derive from it.
+     *
+     * @param fileHeaderSize the size of the file header, in bytes.
+     * @param sectorSize     the size of a sector, in bytes (a power of two).
+     * @param chunksShift    the number of chunks on each side of the region, as a power of two.
+     */
+    public record Geometry(int fileHeaderSize, int sectorSize, int chunksShift) {
+        public int chunksPerSide() {
+            return 1 << this.chunksShift;
+        }
+
+        public int chunks() {
+            return 1 << (this.chunksShift * 3);
+        }
+
+        public int offsetsPosition() {
+            return this.fileHeaderSize;
+        }
+
+        public int metadataPosition() {
+            return this.fileHeaderSize + this.chunks() * OFFSET_LENGTH;
+        }
+
+        /**
+         * Returns the position of the first sector: the end of the metadata table, rounded up to the sector size.
+         */
+        public int dataPosition() {
+            int end = this.metadataPosition() + this.chunks() * METADATA_LENGTH;
+            return (end + this.sectorSize - 1) / this.sectorSize * this.sectorSize;
+        }
+
+        /**
+         * Returns the location of a chunk in the tables, from its coordinates in the region.
+         */
+        public int location(int x, int y, int z) {
+            return x + (z << this.chunksShift) + (y << (this.chunksShift * 2));
+        }
+    }
+
+    /**
+     * The raw data of a chunk read asynchronously, or null if the chunk is empty, and its uncompressed size.
+     */
+    private record ChunkRead(@Nullable ByteBuffer payload, int uncompressedSize) {
+    }
+
+    /**
+     * The data of a chunk read ahead, or pending if {@code payload} is null.
+     */
+    private record ReadAhead(int offset, @Nullable ByteBuffer payload, long time) {
+    }
+
+    /**
+     * The metadata of a chunk, stored in the metadata table.
+     *
+     * @param lastModified     the last time the chunk was written, in seconds since the epoch.
+     * @param uncompressedSize the size of the uncompressed chunk data, or 0 if unknown (upgraded or recovered chunks).
+     * @param compression      the compression type of the chunk data, or null if unknown.
+     */
+    public record ChunkMetadata(long lastModified, int uncompressedSize, @Nullable CompressionType compression) {
+    }
+
+    /**
+     * The outcome of a {@link #compact(long)}.
+     *
+     * @param movedChunks    the number of chunks moved.
+     * @param reclaimedBytes the number of bytes the file shrank by.
+     */
+    public record CompactionResult(int movedChunks, long reclaimedBytes) {
+    }
+
+    /**
+     * The outcome of a {@link #verify(boolean)}.
+     *
+     * @param region          the region.
+     * @param verifiedChunks  the number of chunks verified.
+     * @param corruptedChunks the number of chunks found corrupted.
+     * @param failure         why the region file couldn't be verified at all, or null if it was.
+     */
+    public record VerificationResult(RegionPos region, int verifiedChunks, int corruptedChunks, @Nullable String failure) {
+        public VerificationResult(RegionPos region, int verifiedChunks, int corruptedChunks) {
+            this(region, verifiedChunks, corruptedChunks, null);
+        }
+
+        /**
+         * Returns the result of a region file that couldn't be verified.
+         *
+         * @param region the region.
+         * @param cause  the reason, or null if unknown.
+         * @return the result.
+         */
+        public static VerificationResult failed(RegionPos region, @Nullable Throwable cause) {
+            return new VerificationResult(region, 0, 0, cause == null ? "Unknown failure" : String.valueOf(cause));
+        }
+
+        public boolean isFailed() {
+            return this.failure != null;
+        }
+    }
+
+    public enum StorageMode {
+        /**
+         * Chunks are read with positional reads on the file channel.
+         */
+        CHANNEL,
+        /**
+         * The file is memory-mapped and chunks are decompressed straight from the mapping.
+         */
+        MAPPED
     }
 
     public enum CompressionType {
-        NONE(0), ZLIB(2), GZIP(1), ZSTD(3), LZ4(4);
+        NONE(0), ZLIB(2), GZIP(1), ZSTD(3), LZ4(4),
+        /**
+         * Zstd with a trained dictionary, the dictionary id is stored after the compression type.
+         */
+        ZSTD_DICT(5),
+        /**
+         * A single LZ4 block, preceded by the uncompressed length, so it's decompressed at once into an exactly sized
+         * buffer. {@link #LZ4} is the framed stream format, only kept to read older chunks.
+         */
+        LZ4_RAW(6);
 
         private final int version;
 
@@ -344,6 +1807,8 @@ public class RegionFile implements AutoCloseable {
                 case 2 -> CompressionType.ZLIB;
                 case 3 -> CompressionType.ZSTD;
                 case 4 -> CompressionType.LZ4;
+                case 5 -> CompressionType.ZSTD_DICT;
+                case 6 -> CompressionType.LZ4_RAW;
                 default -> CompressionType.NONE;
             };
         }
@@ -0,0 +1,108 @@
+package ro.nico.tag.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The in-memory offset and metadata tables of a region file.
+ * <p>
+ * Entries are stored in pages of {@value #PAGE_SIZE} chunks, allocated the first time a chunk of the page is set, so
+ * the index of a sparse region only holds the pages of its chunks. Entries of a missing page read as 0, like the ones
+ * of an empty chunk. The {@link RegionPresence} of the chunks is kept along with the offsets.
+ */
+public class RegionIndex {
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int ENTRY_LENGTH = 4; // offset, last modification, uncompressed size, compression type
+
+    private final int length;
+    private final AtomicReferenceArray<AtomicIntegerArray> pages;
+    private final RegionPresence presence;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param chunksShift the number of chunks on each side of the region, as a power of two.
+     */
+    public RegionIndex(int chunksShift) {
+        this.length = 1 << (chunksShift * 3);
+        this.pages = new AtomicReferenceArray<>((this.length + PAGE_SIZE - 1) >> PAGE_SHIFT);
+        this.presence = new RegionPresence(chunksShift);
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public int getOffset(int location) {
+        return this.get(location, 0);
+    }
+
+    public void setOffset(int location, int offset) {
+        this.set(location, 0, offset);
+        this.presence.set(location, offset != 0);
+    }
+
+    public RegionPresence getPresence() {
+        return this.presence;
+    }
+
+    /**
+     * Returns the last time a chunk was written, in seconds since the epoch (unsigned).
+     */
+    public int getLastModified(int location) {
+        return this.get(location, 1);
+    }
+
+    public int getUncompressedSize(int location) {
+        return this.get(location, 2);
+    }
+
+    /**
+     * Returns the compression type version of a chunk, or -1 if unknown.
+     */
+    public int getCompression(int location) {
+        return this.get(location, 3);
+    }
+
+    public void setMetadata(int location, int lastModified, int uncompressedSize, int compression) {
+        this.set(location, 1, lastModified);
+        this.set(location, 2, uncompressedSize);
+        this.set(location, 3, compression);
+    }
+
+    /**
+     * Returns the number of allocated pages, each holding the entries of {@value #PAGE_SIZE} chunks.
+     */
+    public int getAllocatedPages() {
+        int allocated = 0;
+        for (int i = 0; i < this.pages.length(); i++)
+            if (this.pages.get(i) != null)
+                allocated++;
+        return allocated;
+    }
+
+    /**
+     * Returns the memory used by the allocated pages, in bytes.
+     */
+    public long getAllocatedBytes() {
+        return (long) this.getAllocatedPages() * Math.min(PAGE_SIZE, this.length) * ENTRY_LENGTH * Integer.BYTES;
+    }
+
+    private int get(int location, int field) {
+        AtomicIntegerArray page = this.pages.get(location >> PAGE_SHIFT);
+        return page == null ? 0 : page.get((location & (PAGE_SIZE - 1)) * ENTRY_LENGTH + field);
+    }
+
+    private void set(int location, int field, int value) {
+        AtomicIntegerArray page = this.pages.get(location >> PAGE_SHIFT);
+        if (page == null) {
+            if (value == 0)
+                return; // already reads as 0
+            page = new AtomicIntegerArray(Math.min(PAGE_SIZE, this.length) * ENTRY_LENGTH);
+            if (!this.pages.compareAndSet(location >> PAGE_SHIFT, null, page))
+                page = this.pages.get(location >> PAGE_SHIFT);
+        }
+        page.set((location & (PAGE_SIZE - 1)) * ENTRY_LENGTH + field, value);
+    }
+}
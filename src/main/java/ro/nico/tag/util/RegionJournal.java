@@ -0,0 +1,292 @@
+package ro.nico.tag.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.Nullable;
+import ro.nico.tag.CraftTagRegister;
+import ro.nico.tag.wrapper.RegionPos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only, per world journal of chunk writes, making region saves crash-consistent.
+ * <p>
+ * A chunk write is appended to the journal and made durable before it's applied to its region file. Records appended
+ * by concurrent writers are committed together, with a single {@link FileChannel#force(boolean)} per batch.
+ * Once the journal grows past a threshold, a checkpoint forces the region files to the disk and truncates the journal.
+ * When a region file is opened after a crash, the records left in the journal for it are replayed.
+ * <p>
+ * Record layout: {@code magic (int), body length (int), body, crc32c of the body (int)},
+ * where the body is {@code region x, y, z (int), chunk location (int), payload length (int), payload}.
+ * The payload length is -1 for an empty chunk, and -2 for a chunk stored in an external file (which is written and
+ * forced before its record is appended, so the record has no payload).
+ */
+public class RegionJournal implements AutoCloseable {
+    private static final int MAGIC = 0x544A524E; // TJRN
+    private static final int RECORD_HEADER = 8, BODY_HEADER = 20, RECORD_TRAILER = 4;
+    private static final int EMPTY_PAYLOAD = -1, EXTERNAL_PAYLOAD = -2;
+
+    private final File file;
+    private final FileChannel channel;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService committer;
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final Map<RegionPos, Map<Integer, Long>> recovery = new ConcurrentHashMap<>(); // region -> chunk location -> record position
+    private volatile boolean closed;
+    private long size;
+
+    public RegionJournal(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = this.scan();
+        this.channel.truncate(this.size); // drop a torn record at the end, if any
+        this.channel.position(this.size);
+        this.committer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Journal-Committer-" + file.getParentFile().getName()).setDaemon(true).build());
+        this.committer.submit(this::commitLoop);
+    }
+
+    public final File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns the size of the journal, in bytes.
+     *
+     * @return the size of the journal, in bytes.
+     */
+    public synchronized long size() {
+        return this.size;
+    }
+
+    /**
+     * Journals a chunk write and applies it once it's durable. Checkpoints can't happen while a write is being
+     * applied, so a record is never dropped before its region file is forced to the disk.
+     *
+     * @param region   the region of the chunk.
+     * @param location the location of the chunk in the region offset table.
+     * @param payload  the chunk data, or null if the chunk is now empty or external.
+     * @param external true if the chunk is now stored in an external file.
+     * @param apply    applies the write to the region file.
+     * @throws IOException if the record couldn't be committed.
+     */
+    public void write(RegionPos region, int location, @Nullable ByteBuffer payload, boolean external, Runnable apply) throws IOException {
+        this.checkpointLock.readLock().lock();
+        try {
+            this.append(region, location, external ? null : payload, external).get();
+            apply.run();
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to commit journal record", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while committing journal record", ex);
+        } finally {
+            this.checkpointLock.readLock().unlock();
+        }
+    }
+
+    private CompletableFuture<Void> append(RegionPos region, int location, @Nullable ByteBuffer payload, boolean external) {
+        if (this.closed)
+            return CompletableFuture.failedFuture(new IOException("Journal is closed"));
+        int payloadLength = payload == null ? 0 : payload.remaining();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + BODY_HEADER + payloadLength + RECORD_TRAILER);
+        record.putInt(MAGIC).putInt(BODY_HEADER + payloadLength);
+        record.putInt(region.getX()).putInt(region.getY()).putInt(region.getZ()).putInt(location);
+        record.putInt(payload != null ? payloadLength : external ? EXTERNAL_PAYLOAD : EMPTY_PAYLOAD);
+        if (payload != null)
+            record.put(payload.duplicate());
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), RECORD_HEADER, BODY_HEADER + payloadLength);
+        record.putInt((int) crc.getValue());
+        PendingRecord pending = new PendingRecord(record.flip(), new CompletableFuture<>());
+        this.queue.add(pending);
+        return pending.future();
+    }
+
+    /**
+     * Commits queued records in batches: one gathering write and one force for everything queued at that moment.
+     */
+    private void commitLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (!this.closed || !this.queue.isEmpty()) {
+            try {
+                PendingRecord first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                this.queue.drainTo(batch);
+                ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                long length = 0;
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i] = batch.get(i).record();
+                    length += buffers[i].remaining();
+                }
+                synchronized (this) {
+                    long written = 0;
+                    while (written < length)
+                        written += this.channel.write(buffers);
+                    this.channel.force(false);
+                    this.size += length;
+                }
+                for (PendingRecord pending : batch)
+                    pending.future().complete(null);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException ex) {
+                CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to commit journal records", ex);
+                for (PendingRecord pending : batch)
+                    pending.future().completeExceptionally(ex);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forces the region files to the disk and truncates the journal. Chunk writes wait until the checkpoint is done.
+     * Skipped while some regions still have records to replay from a previous crash.
+     *
+     * @param forceRegions flushes and forces every open region file of the world.
+     * @return true if the journal was truncated.
+     * @throws IOException if any I/O error occurs.
+     */
+    public boolean checkpoint(Runnable forceRegions) throws IOException {
+        if (!this.recovery.isEmpty())
+            return false;
+        this.checkpointLock.writeLock().lock();
+        try {
+            // every appended record was applied (writers hold the read lock until then)
+            forceRegions.run();
+            synchronized (this) {
+                this.channel.truncate(0);
+                this.channel.position(0);
+                this.channel.force(true);
+                this.size = 0;
+            }
+            return true;
+        } finally {
+            this.checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the regions that still have records to replay.
+     *
+     * @return the regions that still have records to replay.
+     */
+    public List<RegionPos> getPendingRecovery() {
+        return new ArrayList<>(this.recovery.keySet());
+    }
+
+    /**
+     * Replays the records left in the journal for a region, in the order they were written.
+     * Each chunk gets only its last record, since it's the only one that matters.
+     *
+     * @param region the region.
+     * @param apply  applies a record: chunk location, payload (null for an empty or external chunk) and whether the
+     *               chunk is external.
+     * @throws IOException if any I/O error occurs.
+     */
+    public void replay(RegionPos region, ReplayConsumer apply) throws IOException {
+        Map<Integer, Long> records = this.recovery.get(region);
+        if (records == null)
+            return;
+        TreeMap<Long, Integer> ordered = new TreeMap<>();
+        records.forEach((location, position) -> ordered.put(position, location));
+        for (Map.Entry<Long, Integer> entry : ordered.entrySet()) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + BODY_HEADER);
+            this.readFully(header, entry.getKey());
+            int payloadLength = header.flip().getInt(RECORD_HEADER + BODY_HEADER - 4);
+            if (payloadLength < 0) {
+                apply.accept(entry.getValue(), null, payloadLength == EXTERNAL_PAYLOAD);
+                continue;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            this.readFully(payload, entry.getKey() + RECORD_HEADER + BODY_HEADER);
+            apply.accept(entry.getValue(), payload.flip(), false);
+        }
+    }
+
+    /**
+     * Marks the recovery of a region as done, once its region file was forced to the disk.
+     *
+     * @param region the region.
+     */
+    public void recovered(RegionPos region) {
+        this.recovery.remove(region);
+    }
+
+    /**
+     * Reads the journal from the beginning and indexes the last record of each chunk.
+     *
+     * @return the position of the end of the last valid record.
+     */
+    private long scan() throws IOException {
+        long position = 0;
+        long fileSize = this.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        Map<RegionPos, Map<Integer, Long>> found = new HashMap<>();
+        while (position + RECORD_HEADER <= fileSize) {
+            header.clear();
+            this.readFully(header, position);
+            header.flip();
+            int magic = header.getInt();
+            int bodyLength = header.getInt();
+            if (magic != MAGIC || bodyLength < BODY_HEADER || position + RECORD_HEADER + bodyLength + RECORD_TRAILER > fileSize)
+                break; // torn or corrupted record, everything after it is lost
+            ByteBuffer body = ByteBuffer.allocate(bodyLength + RECORD_TRAILER);
+            this.readFully(body, position + RECORD_HEADER);
+            CRC32C crc = new CRC32C();
+            crc.update(body.array(), 0, bodyLength);
+            if ((int) crc.getValue() != body.getInt(bodyLength))
+                break;
+            body.flip();
+            RegionPos region = RegionPos.of(body.getInt(), body.getInt(), body.getInt());
+            found.computeIfAbsent(region, key -> new HashMap<>()).put(body.getInt(), position);
+            position += RECORD_HEADER + bodyLength + RECORD_TRAILER;
+        }
+        this.recovery.putAll(found);
+        return position;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of journal");
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.committer.shutdown();
+        try {
+            if (!this.committer.awaitTermination(30, TimeUnit.SECONDS))
+                this.committer.shutdownNow();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.channel.close();
+    }
+
+    @FunctionalInterface
+    public interface ReplayConsumer {
+        void accept(int location, @Nullable ByteBuffer payload, boolean external) throws IOException;
+    }
+
+    private record PendingRecord(ByteBuffer record, CompletableFuture<Void> future) {
+    }
+}
@@ -0,0 +1,69 @@
+package ro.nico.tag.util;
+
+import ro.nico.tag.wrapper.ChunkPos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The chunks of a region having data stored, one bit per chunk of the offset table.
+ * <p>
+ * Kept up to date by the {@link RegionIndex} of the region, and outlives it, so the chunks known to be empty don't need
+ * their region to be loaded. {@link #ABSENT} stands for a region without a file, or without chunks.
+ */
+public class RegionPresence {
+    /**
+     * The presence of a region without a file, or without chunks, where every chunk is empty. Never set.
+     */
+    public static final RegionPresence ABSENT = new RegionPresence(0);
+
+    private final int chunksShift;
+    private final int chunksMask;
+    private final AtomicLongArray bits;
+
+    public RegionPresence(int chunksShift) {
+        this.chunksShift = chunksShift;
+        this.chunksMask = (1 << chunksShift) - 1;
+        this.bits = new AtomicLongArray(((1 << (chunksShift * 3)) + 63) >> 6);
+    }
+
+    /**
+     * Returns whether a chunk has data stored.
+     *
+     * @param location the location of the chunk in the offset table.
+     * @return true if the chunk has data stored.
+     */
+    public boolean isPresent(int location) {
+        if (this == ABSENT)
+            return false;
+        return (this.bits.get(location >> 6) & (1L << location)) != 0;
+    }
+
+    /**
+     * Returns whether a chunk has data stored, from its position in the world.
+     *
+     * @param chunkPos the chunk position.
+     * @return true if the chunk has data stored.
+     */
+    public boolean isPresent(ChunkPos chunkPos) {
+        int x = chunkPos.getX() & this.chunksMask, y = chunkPos.getY() & this.chunksMask, z = chunkPos.getZ() & this.chunksMask;
+        return this.isPresent(x + (z << this.chunksShift) + (y << (this.chunksShift * 2)));
+    }
+
+    void set(int location, boolean present) {
+        long bit = 1L << location;
+        if (present)
+            this.bits.getAndUpdate(location >> 6, word -> word | bit);
+        else
+            this.bits.getAndUpdate(location >> 6, word -> word & ~bit);
+    }
+
+    /**
+     * Returns the number of chunks having data stored.
+     */
+    public int count() {
+        int count = 0;
+        for (int i = 0; i < this.bits.length(); i++)
+            count += Long.bitCount(this.bits.get(i));
+        return count;
+    }
+}
@@ -0,0 +1,131 @@
+package ro.nico.tag.util;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import ro.nico.tag.wrapper.RegionPos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A point-in-time view of the chunks of a region file changed since a given time, taken by
+ * {@link RegionFile#snapshot(long)}.
+ * <p>
+ * While the snapshot is attached to its region file, the sectors of the captured chunks are pinned: writes to these
+ * chunks go to new sectors, and the pinned ones are only released with the snapshot, so the captured data can still be
+ * read from the disk while the region keeps being written. External chunks are mapped when the snapshot is taken.
+ * <p>
+ * Written as {@code r.x.y.z.snap}: {@code magic (int), version (int), since (long), taken (long), chunks shift (int)},
+ * a presence bitmap of every chunk of the region at that time (one bit per chunk, as longs), then one record per
+ * captured chunk:
+ * {@code location (int), last modification (int), uncompressed size (int), payload length (int), payload}.
+ * Restoring a snapshot takes the captured chunks from it, the other present chunks from the previous snapshots.
+ */
+public class RegionSnapshot {
+    private static final int MAGIC = 0x54534E50; // TSNP
+    private static final int VERSION = 2;
+
+    private final RegionPos region;
+    private final File regionFile;
+    private final RegionFile.Geometry geometry;
+    private final long since, taken;
+    private final BitSet present;
+    private final IntArrayList locations = new IntArrayList();
+    private final IntArrayList lastModified = new IntArrayList();
+    private final IntArrayList uncompressedSizes = new IntArrayList();
+    private final Int2IntOpenHashMap offsets = new Int2IntOpenHashMap(); // captured location -> offset
+    private final Map<Integer, ByteBuffer> externalChunks = new HashMap<>();
+
+    RegionSnapshot(RegionPos region, File regionFile, RegionFile.Geometry geometry, long since) {
+        this.region = region;
+        this.regionFile = regionFile;
+        this.geometry = geometry;
+        this.present = new BitSet(geometry.chunks());
+        this.since = since;
+        this.taken = System.currentTimeMillis() / 1000;
+    }
+
+    public final RegionPos getRegion() {
+        return this.region;
+    }
+
+    /**
+     * Returns the number of captured chunks.
+     *
+     * @return the number of captured chunks.
+     */
+    public final int size() {
+        return this.locations.size();
+    }
+
+    final void markPresent(int location) {
+        this.present.set(location);
+    }
+
+    final void capture(int location, int offset, int lastModified, int uncompressedSize, ByteBuffer externalChunk) {
+        this.locations.add(location);
+        this.lastModified.add(lastModified);
+        this.uncompressedSizes.add(uncompressedSize);
+        this.offsets.put(location, offset);
+        if (externalChunk != null)
+            this.externalChunks.put(location, externalChunk);
+    }
+
+    /**
+     * Returns the offset a chunk had when it was captured.
+     *
+     * @param location the location of the chunk in the offset table.
+     * @return the captured offset, or 0 if the chunk wasn't captured.
+     */
+    final int getCapturedOffset(int location) {
+        return this.offsets.get(location);
+    }
+
+    final IntArrayList getCapturedLocations() {
+        return this.locations;
+    }
+
+    /**
+     * Writes the snapshot to a directory, reading the captured chunks one at a time.
+     *
+     * @param directory the directory.
+     * @return the number of bytes written.
+     * @throws IOException if any I/O error occurs.
+     */
+    public final long writeTo(File directory) throws IOException {
+        File snapshotFile = new File(directory, "r." + this.region.getX() + "." + this.region.getY() + "." + this.region.getZ() + ".snap");
+        try (FileChannel source = FileChannel.open(this.regionFile.toPath(), StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(28 + ((this.geometry.chunks() + 63) / 64) * 8);
+            header.putInt(MAGIC).putInt(VERSION).putLong(this.since).putLong(this.taken).putInt(this.geometry.chunksShift());
+            long[] bitmap = this.present.toLongArray();
+            header.asLongBuffer().put(bitmap);
+            header.clear();
+            long written = this.write(target, header);
+            ByteBuffer recordHeader = ByteBuffer.allocate(16);
+            for (int i = 0; i < this.locations.size(); i++) {
+                int location = this.locations.getInt(i);
+                ByteBuffer external = this.externalChunks.get(location);
+                ByteBuffer payload = external != null ? external.duplicate() : RegionFile.readPayload(source, this.geometry, this.offsets.get(location));
+                recordHeader.clear().putInt(location).putInt(this.lastModified.getInt(i)).putInt(this.uncompressedSizes.getInt(i)).putInt(payload.remaining()).flip();
+                written += this.write(target, recordHeader);
+                written += this.write(target, payload);
+            }
+            target.force(true);
+            return written;
+        }
+    }
+
+    private long write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer);
+        return written;
+    }
+}
@@ -0,0 +1,102 @@
+package ro.nico.tag.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.Nullable;
+import ro.nico.tag.CraftTagRegister;
+import ro.nico.tag.wrapper.RegionPos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * Verifies the {@code r.x.y.z.tag} files of a directory in parallel, one region file per task.
+ */
+public final class RegionVerifier {
+    private RegionVerifier() {
+    }
+
+    /**
+     * Verifies the region files of a directory with the given verification.
+     *
+     * @param directory    the directory of the region files.
+     * @param threads      the number of region files verified at the same time.
+     * @param verification verifies a region file.
+     * @return the result of each region file, failed if it couldn't be opened or verified.
+     * @throws InterruptedException if interrupted while waiting for the verification.
+     */
+    public static List<RegionFile.VerificationResult> verify(File directory, int threads, RegionVerification verification) throws InterruptedException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return List.of();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("Region-Verifier-%d").setDaemon(true).build());
+        try {
+            Map<RegionPos, Future<RegionFile.VerificationResult>> futures = new LinkedHashMap<>();
+            for (File file : files) {
+                RegionPos regionPos = RegionFile.getRegionPos(file);
+                if (regionPos != null)
+                    futures.put(regionPos, executor.submit(() -> verification.verify(regionPos)));
+            }
+            List<RegionFile.VerificationResult> results = new ArrayList<>();
+            for (Map.Entry<RegionPos, Future<RegionFile.VerificationResult>> entry : futures.entrySet()) {
+                try {
+                    RegionFile.VerificationResult result = entry.getValue().get();
+                    results.add(result != null ? result : RegionFile.VerificationResult.failed(entry.getKey(), null));
+                } catch (ExecutionException ex) {
+                    CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to verify region", ex.getCause());
+                    results.add(RegionFile.VerificationResult.failed(entry.getKey(), ex.getCause()));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Verifies the region files of a world that isn't loaded, opening them directly.
+     *
+     * @param directory  the data folder of the world.
+     * @param threads    the number of region files verified at the same time.
+     * @param quarantine true to quarantine corrupted chunks.
+     * @return the result of each region file.
+     * @throws InterruptedException if interrupted while waiting for the verification.
+     */
+    public static List<RegionFile.VerificationResult> verifyOffline(File directory, int threads, boolean quarantine) throws InterruptedException {
+        return verifyOffline(directory, new RegionConfig(), threads, quarantine);
+    }
+
+    /**
+     * Verifies the region files of a world that isn't loaded, opening them directly with the region config of the
+     * world (its region geometry must match the one of the files).
+     *
+     * @param directory  the data folder of the world.
+     * @param config     the region config of the world.
+     * @param threads    the number of region files verified at the same time.
+     * @param quarantine true to quarantine corrupted chunks.
+     * @return the result of each region file.
+     * @throws InterruptedException if interrupted while waiting for the verification.
+     */
+    public static List<RegionFile.VerificationResult> verifyOffline(File directory, RegionConfig config, int threads, boolean quarantine) throws InterruptedException {
+        ZstdDictionaryStore dictionaries = new ZstdDictionaryStore(new File(directory, ZstdDictionaryStore.DIRECTORY));
+        return verify(directory, threads, regionPos -> {
+            try (RegionFile region = new RegionFile(directory.toPath(), regionPos, config, null, dictionaries)) {
+                return region.verify(quarantine); // failed if the file couldn't be opened
+            }
+        });
+    }
+
+    @FunctionalInterface
+    public interface RegionVerification {
+        @Nullable
+        RegionFile.VerificationResult verify(RegionPos regionPos) throws IOException;
+    }
+}
@@ -0,0 +1,182 @@
+package ro.nico.tag.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Accumulates the writes of a region file (chunk payloads and header entries) and flushes them as a small number
+ * of large, ordered writes.
+ * <p>
+ * Payloads are kept sorted by their position in the file, so payloads stored in adjacent sectors are coalesced into a
+ * single write. Header entries (the offset and metadata tables, as consecutive ints) are written after all payloads,
+ * from an image of the header as it is on the disk, so runs of dirty entries separated by a few clean ones can be
+ * written at once.
+ */
+public class RegionWriteBatch {
+    private static final int ENTRY_LENGTH = 4;
+    private static final int MAX_HEADER_GAP = 256; // clean entries allowed between two dirty ones, in the same write
+
+    private final AsynchronousFileChannel fileChannel;
+    private final int sectorSize;
+    private final TreeMap<Long, ByteBuffer> payloads = new TreeMap<>(); // position -> length prefix + payload
+    private final long headerPosition;
+    private final int[] header; // the header entries, as they will be on the disk after the next flush
+    private final BitSet dirtyEntries;
+    private long pendingBytes;
+
+    public RegionWriteBatch(AsynchronousFileChannel fileChannel, int sectorSize, long headerPosition, int[] header) {
+        this.fileChannel = fileChannel;
+        this.sectorSize = sectorSize;
+        this.headerPosition = headerPosition;
+        this.header = header;
+        this.dirtyEntries = new BitSet(header.length);
+    }
+
+    /**
+     * Queues a payload, replacing any payload queued at the same position.
+     *
+     * @param position the position in the file.
+     * @param payload  the payload, prefixed with its length.
+     */
+    public synchronized void putPayload(long position, ByteBuffer payload) {
+        ByteBuffer previous = this.payloads.put(position, payload);
+        if (previous != null)
+            this.pendingBytes -= previous.remaining();
+        this.pendingBytes += payload.remaining();
+    }
+
+    /**
+     * Drops the payload queued at a position, if any. Used when the sectors of a chunk are released.
+     *
+     * @param position the position in the file.
+     */
+    public synchronized void discardPayload(long position) {
+        ByteBuffer previous = this.payloads.remove(position);
+        if (previous != null)
+            this.pendingBytes -= previous.remaining();
+    }
+
+    /**
+     * Returns the payload queued at a position, so reads can see writes that weren't flushed yet.
+     *
+     * @param position the position in the file.
+     * @return a view of the payload (length prefix included), or null if nothing is queued at this position.
+     */
+    @Nullable
+    public synchronized ByteBuffer getPayload(long position) {
+        ByteBuffer payload = this.payloads.get(position);
+        return payload == null ? null : payload.duplicate();
+    }
+
+    /**
+     * Queues a header entry.
+     *
+     * @param index the index of the entry, in ints from the start of the header.
+     * @param value the new value of the entry.
+     */
+    public synchronized void putHeaderEntry(int index, int value) {
+        this.header[index] = value;
+        this.dirtyEntries.set(index);
+    }
+
+    /**
+     * Returns the number of payload bytes waiting to be flushed.
+     *
+     * @return the number of payload bytes waiting to be flushed.
+     */
+    public synchronized long getPendingBytes() {
+        return this.pendingBytes;
+    }
+
+    /**
+     * Returns true if nothing is waiting to be flushed.
+     *
+     * @return true if nothing is waiting to be flushed.
+     */
+    public synchronized boolean isEmpty() {
+        return this.payloads.isEmpty() && this.dirtyEntries.isEmpty();
+    }
+
+    /**
+     * Writes all queued payloads, coalescing adjacent ones, and then all dirty header entries.
+     *
+     * @throws IOException if any I/O error occurs.
+     */
+    public synchronized void flush() throws IOException {
+        if (this.isEmpty())
+            return;
+        try {
+            List<Future<Integer>> writes = new ArrayList<>();
+            // payloads first, the header must never point to sectors that weren't written yet
+            long runStart = -1, runEnd = -1;
+            List<Map.Entry<Long, ByteBuffer>> run = new ArrayList<>();
+            for (Map.Entry<Long, ByteBuffer> entry : this.payloads.entrySet()) {
+                long position = entry.getKey();
+                ByteBuffer payload = entry.getValue();
+                if (runStart != -1 && (position < runEnd || position - runEnd >= this.sectorSize)) { // not adjacent
+                    this.writeRun(writes, runStart, runEnd, run);
+                    runStart = -1;
+                }
+                if (runStart == -1) {
+                    runStart = position;
+                    run.clear();
+                }
+                run.add(entry);
+                runEnd = position + payload.remaining();
+            }
+            if (runStart != -1)
+                this.writeRun(writes, runStart, runEnd, run);
+            for (Future<Integer> write : writes)
+                write.get();
+            writes.clear();
+            // then the header
+            int first = this.dirtyEntries.nextSetBit(0);
+            while (first != -1) {
+                int last = first;
+                int next = this.dirtyEntries.nextSetBit(last + 1);
+                while (next != -1 && next - last <= MAX_HEADER_GAP) {
+                    last = next;
+                    next = this.dirtyEntries.nextSetBit(last + 1);
+                }
+                ByteBuffer entries = ByteBuffer.allocate((last - first + 1) * ENTRY_LENGTH);
+                entries.asIntBuffer().put(this.header, first, last - first + 1);
+                writes.add(this.fileChannel.write(entries, this.headerPosition + ((long) first * ENTRY_LENGTH)));
+                first = next;
+            }
+            for (Future<Integer> write : writes)
+                write.get();
+            this.payloads.clear();
+            this.dirtyEntries.clear();
+            this.pendingBytes = 0;
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to flush region writes", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing region writes", ex);
+        }
+    }
+
+    private void writeRun(List<Future<Integer>> writes, long runStart, long runEnd, List<Map.Entry<Long, ByteBuffer>> run) {
+        if (run.size() == 1) {
+            writes.add(this.fileChannel.write(run.getFirst().getValue().duplicate(), runStart));
+            return;
+        }
+        // AsynchronousFileChannel has no gathering write, so the run is assembled into one buffer
+        ByteBuffer buffer = ByteBuffer.allocate((int) (runEnd - runStart));
+        for (Map.Entry<Long, ByteBuffer> entry : run) {
+            buffer.position((int) (entry.getKey() - runStart)); // skips the padding at the end of the previous payload
+            buffer.put(entry.getValue().duplicate());
+        }
+        writes.add(this.fileChannel.write(buffer.clear(), runStart));
+    }
+}
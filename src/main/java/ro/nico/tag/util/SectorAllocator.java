@@ -0,0 +1,311 @@
+package ro.nico.tag.util;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
+
+import java.util.BitSet;
+
+/**
+ * Keeps track of the used and free sectors of a region file.
+ * <p>
+ * Used sectors are stored in a {@code long[]} bitmap, while free sectors are indexed as runs (contiguous free sectors)
+ * bucketed by their length. Finding a run large enough for an allocation only needs a lookup in the bitmap of non-empty
+ * buckets, so it doesn't depend on the size of the file. Inside a bucket, runs are ordered by their starting sector
+ * so data is kept close to the beginning of the file.
+ */
+public class SectorAllocator {
+    /**
+     * Runs longer than this are all kept in the last bucket.
+     */
+    public static final int MAX_BUCKET = 256;
+
+    private long[] used;
+    private volatile int totalSectors;
+    private long freeSectors;
+    private final Int2IntOpenHashMap runsByStart = new Int2IntOpenHashMap(); // start -> length
+    private final Int2IntOpenHashMap runsByEnd = new Int2IntOpenHashMap(); // end (exclusive) -> start
+    private final IntRBTreeSet[] buckets = new IntRBTreeSet[MAX_BUCKET + 1]; // run length -> run starts
+    private final BitSet nonEmptyBuckets = new BitSet(MAX_BUCKET + 1);
+
+    /**
+     * Creates an allocator for a file containing {@code totalSectors} sectors, all of them free.
+     * Sectors in use should be marked with {@link #markUsed(int, int)} followed by a call to {@link #rebuildFreeRuns()}.
+     *
+     * @param totalSectors the number of sectors of the file.
+     */
+    public SectorAllocator(int totalSectors) {
+        this.totalSectors = totalSectors;
+        this.used = new long[Math.max(1, (totalSectors + 63) >>> 6)];
+        this.runsByStart.defaultReturnValue(-1);
+        this.runsByEnd.defaultReturnValue(-1);
+        for (int i = 0; i <= MAX_BUCKET; i++)
+            this.buckets[i] = new IntRBTreeSet();
+    }
+
+    /**
+     * Marks sectors as used, without updating the free runs index.
+     *
+     * @param start the first sector.
+     * @param count the number of sectors.
+     */
+    public synchronized void markUsed(int start, int count) {
+        this.setUsed(start, count, true);
+    }
+
+    /**
+     * Rebuilds the free runs index from the used sectors bitmap.
+     */
+    public synchronized void rebuildFreeRuns() {
+        this.runsByStart.clear();
+        this.runsByEnd.clear();
+        for (IntRBTreeSet bucket : this.buckets)
+            bucket.clear();
+        this.nonEmptyBuckets.clear();
+        this.freeSectors = 0;
+
+        int sector = this.nextFree(0);
+        while (sector < this.totalSectors) {
+            int end = Math.min(this.nextUsed(sector), this.totalSectors);
+            this.addRun(sector, end - sector);
+            sector = this.nextFree(end);
+        }
+    }
+
+    /**
+     * Allocates {@code count} contiguous sectors. If no free run is large enough, the sectors are allocated at the
+     * end of the file (reusing a free run touching the end, if any), and {@link #getTotalSectors()} grows.
+     *
+     * @param count the number of sectors needed.
+     * @return the first allocated sector.
+     */
+    public synchronized int allocate(int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("Can't allocate " + count + " sectors");
+        int bucketIndex = this.nonEmptyBuckets.nextSetBit(Math.min(count, MAX_BUCKET));
+        if (bucketIndex != -1) {
+            int start = this.buckets[bucketIndex].firstInt();
+            int length = this.runsByStart.get(start);
+            if (length >= count) { // always true, except for the last bucket which holds runs of any length above MAX_BUCKET
+                this.removeRun(start, length);
+                if (length > count)
+                    this.addRun(start + count, length - count);
+                this.setUsed(start, count, true);
+                return start;
+            }
+        }
+        int start = this.runsByEnd.get(this.totalSectors);
+        if (start != -1) // extend the free run at the end of the file instead of leaving it behind
+            this.removeRun(start, this.totalSectors - start);
+        else
+            start = this.totalSectors;
+        this.ensureCapacity(start + count);
+        this.totalSectors = start + count;
+        this.setUsed(start, count, true);
+        return start;
+    }
+
+    /**
+     * Allocates {@code count} contiguous sectors from a free run starting before {@code limit}, without growing the file.
+     * Used to move data closer to the beginning of the file.
+     *
+     * @param count the number of sectors needed.
+     * @param limit the sector the allocated sectors must start before.
+     * @return the first allocated sector, or -1 if no free run before {@code limit} is large enough.
+     */
+    public synchronized int allocateBelow(int count, int limit) {
+        if (count <= 0)
+            throw new IllegalArgumentException("Can't allocate " + count + " sectors");
+        for (int bucketIndex = this.nonEmptyBuckets.nextSetBit(Math.min(count, MAX_BUCKET)); bucketIndex != -1; bucketIndex = this.nonEmptyBuckets.nextSetBit(bucketIndex + 1)) {
+            for (int start : this.buckets[bucketIndex]) {
+                if (start >= limit)
+                    break; // runs are ordered by their starting sector
+                int length = this.runsByStart.get(start);
+                if (length < count)
+                    continue; // only in the last bucket
+                this.removeRun(start, length);
+                if (length > count)
+                    this.addRun(start + count, length - count);
+                this.setUsed(start, count, true);
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the free run at the end of the file, if any, so the file can be truncated.
+     *
+     * @return the new number of sectors covered by the allocator.
+     */
+    public synchronized int trimTail() {
+        int start = this.runsByEnd.get(this.totalSectors);
+        if (start != -1) {
+            this.removeRun(start, this.totalSectors - start);
+            this.totalSectors = start;
+        }
+        return this.totalSectors;
+    }
+
+    /**
+     * Returns the length of the free run at the end of the file.
+     *
+     * @return the number of free sectors at the end of the file, or 0 if the last sector is used.
+     */
+    public synchronized int getTailFreeSectors() {
+        int start = this.runsByEnd.get(this.totalSectors);
+        return start == -1 ? 0 : this.totalSectors - start;
+    }
+
+    /**
+     * Releases sectors, merging them with the free runs around them.
+     *
+     * @param start the first sector.
+     * @param count the number of sectors.
+     */
+    public synchronized void free(int start, int count) {
+        if (count <= 0 || start < 0 || start + count > this.totalSectors)
+            return; // sectors outside the file were never accounted
+        this.setUsed(start, count, false);
+        int end = start + count;
+        int leftStart = this.runsByEnd.get(start);
+        if (leftStart != -1) {
+            this.removeRun(leftStart, start - leftStart);
+            start = leftStart;
+        }
+        int rightLength = this.runsByStart.get(end);
+        if (rightLength != -1) {
+            this.removeRun(end, rightLength);
+            end += rightLength;
+        }
+        this.addRun(start, end - start);
+    }
+
+    /**
+     * Returns true if the sector is in use.
+     *
+     * @param sector the sector.
+     * @return true if the sector is in use.
+     */
+    public synchronized boolean isUsed(int sector) {
+        return sector < this.totalSectors && (this.used[sector >>> 6] & (1L << sector)) != 0;
+    }
+
+    /**
+     * Returns the number of sectors covered by the allocator, used or not.
+     *
+     * @return the number of sectors covered by the allocator.
+     */
+    public int getTotalSectors() {
+        return this.totalSectors;
+    }
+
+    /**
+     * Returns the number of free sectors.
+     *
+     * @return the number of free sectors.
+     */
+    public synchronized long getFreeSectors() {
+        return this.freeSectors;
+    }
+
+    /**
+     * Returns the number of free runs.
+     *
+     * @return the number of free runs.
+     */
+    public synchronized int getFreeRuns() {
+        return this.runsByStart.size();
+    }
+
+    /**
+     * Returns the length of the largest free run.
+     *
+     * @return the length of the largest free run, or 0 if there are no free sectors.
+     */
+    public synchronized int getLargestFreeRun() {
+        int bucketIndex = this.nonEmptyBuckets.previousSetBit(MAX_BUCKET);
+        if (bucketIndex < MAX_BUCKET)
+            return Math.max(bucketIndex, 0);
+        int largest = 0;
+        for (int start : this.buckets[MAX_BUCKET])
+            largest = Math.max(largest, this.runsByStart.get(start));
+        return largest;
+    }
+
+    /**
+     * Returns the fragmentation of the free space, from 0 (all free sectors are contiguous) to almost 1
+     * (free sectors are scattered in runs of one sector).
+     *
+     * @return the fragmentation of the free space.
+     */
+    public synchronized double getFragmentation() {
+        if (this.freeSectors == 0)
+            return 0;
+        return 1d - ((double) this.getLargestFreeRun() / this.freeSectors);
+    }
+
+    private void addRun(int start, int length) {
+        this.runsByStart.put(start, length);
+        this.runsByEnd.put(start + length, start);
+        int bucketIndex = Math.min(length, MAX_BUCKET);
+        this.buckets[bucketIndex].add(start);
+        this.nonEmptyBuckets.set(bucketIndex);
+        this.freeSectors += length;
+    }
+
+    private void removeRun(int start, int length) {
+        this.runsByStart.remove(start);
+        this.runsByEnd.remove(start + length);
+        int bucketIndex = Math.min(length, MAX_BUCKET);
+        IntRBTreeSet bucket = this.buckets[bucketIndex];
+        bucket.remove(start);
+        if (bucket.isEmpty())
+            this.nonEmptyBuckets.clear(bucketIndex);
+        this.freeSectors -= length;
+    }
+
+    private void setUsed(int start, int count, boolean value) {
+        this.ensureCapacity(start + count);
+        for (int sector = start; sector < start + count; sector++) {
+            if (value)
+                this.used[sector >>> 6] |= 1L << sector;
+            else
+                this.used[sector >>> 6] &= ~(1L << sector);
+        }
+    }
+
+    private int nextFree(int from) {
+        int index = from >>> 6;
+        if (index >= this.used.length)
+            return from;
+        long word = ~this.used[index] & (-1L << from);
+        while (word == 0) {
+            if (++index == this.used.length)
+                return index << 6;
+            word = ~this.used[index];
+        }
+        return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private int nextUsed(int from) {
+        int index = from >>> 6;
+        if (index >= this.used.length)
+            return Integer.MAX_VALUE;
+        long word = this.used[index] & (-1L << from);
+        while (word == 0) {
+            if (++index == this.used.length)
+                return Integer.MAX_VALUE;
+            word = this.used[index];
+        }
+        return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private void ensureCapacity(int sectors) {
+        int words = (sectors + 63) >>> 6;
+        if (words > this.used.length) {
+            long[] grown = new long[Math.max(words, this.used.length * 2)];
+            System.arraycopy(this.used, 0, grown, 0, this.used.length);
+            this.used = grown;
+        }
+    }
+}
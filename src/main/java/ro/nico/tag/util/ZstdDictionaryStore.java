@@ -0,0 +1,126 @@
+package ro.nico.tag.util;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import org.jetbrains.annotations.Nullable;
+import ro.nico.tag.CraftTagRegister;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * The trained Zstd dictionaries of a world, stored as {@code <id>.dict} files in a directory.
+ * <p>
+ * Chunks are compressed with the active dictionary (the last trained one), but every dictionary is kept,
+ * since chunks written with an older dictionary need it to be decompressed.
+ */
+public class ZstdDictionaryStore {
+    /**
+     * The name of the directory of the dictionaries, in the data folder of a world.
+     */
+    public static final String DIRECTORY = "dictionaries";
+    private static final String ACTIVE_FILE = "active";
+
+    private final File directory;
+    private final Map<Integer, Dictionary> dictionaries = new ConcurrentHashMap<>();
+    private volatile Dictionary active;
+
+    public ZstdDictionaryStore(File directory) {
+        this.directory = directory;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".dict"));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    Dictionary dictionary = Dictionary.of(Files.readAllBytes(file.toPath()));
+                    this.dictionaries.put(dictionary.id(), dictionary);
+                } catch (IOException | RuntimeException ex) {
+                    CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to load compression dictionary " + file.getName(), ex);
+                }
+            }
+        }
+        try {
+            File activeFile = new File(directory, ACTIVE_FILE);
+            if (activeFile.exists())
+                this.active = this.dictionaries.get(Integer.parseUnsignedInt(Files.readString(activeFile.toPath(), StandardCharsets.UTF_8).trim()));
+        } catch (IOException | NumberFormatException ex) {
+            CraftTagRegister.getLogger().log(Level.SEVERE, "Failed to read the active compression dictionary", ex);
+        }
+    }
+
+    /**
+     * Returns the dictionary used to compress new chunks.
+     *
+     * @return the active dictionary, or null if none was trained yet.
+     */
+    @Nullable
+    public Dictionary getActive() {
+        return this.active;
+    }
+
+    /**
+     * Returns a dictionary from its ID.
+     *
+     * @param id the dictionary ID.
+     * @return the dictionary, or null if not found.
+     */
+    @Nullable
+    public Dictionary get(int id) {
+        return this.dictionaries.get(id);
+    }
+
+    public Collection<Dictionary> getDictionaries() {
+        return this.dictionaries.values();
+    }
+
+    /**
+     * Trains a dictionary from samples (uncompressed chunk data), saves it and makes it the active one.
+     *
+     * @param samples        the samples.
+     * @param dictionarySize the maximum size of the dictionary, in bytes.
+     * @return the trained dictionary.
+     * @throws IOException if the dictionary couldn't be trained or saved.
+     */
+    public synchronized Dictionary train(Collection<byte[]> samples, int dictionarySize) throws IOException {
+        if (samples.isEmpty())
+            throw new IOException("No samples to train a dictionary from");
+        long samplesSize = 0;
+        for (byte[] sample : samples)
+            samplesSize += sample.length;
+        ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(samplesSize, Integer.MAX_VALUE), dictionarySize);
+        for (byte[] sample : samples)
+            if (!trainer.addSample(sample))
+                break; // the trainer buffer is full
+        Dictionary dictionary;
+        try {
+            dictionary = Dictionary.of(trainer.trainSamples());
+        } catch (RuntimeException ex) {
+            throw new IOException("Failed to train a dictionary", ex);
+        }
+        this.directory.mkdirs();
+        Files.write(new File(this.directory, Integer.toUnsignedString(dictionary.id()) + ".dict").toPath(), dictionary.data());
+        Files.writeString(new File(this.directory, ACTIVE_FILE).toPath(), Integer.toUnsignedString(dictionary.id()), StandardCharsets.UTF_8);
+        this.dictionaries.put(dictionary.id(), dictionary);
+        this.active = dictionary;
+        return dictionary;
+    }
+
+    /**
+     * A trained dictionary, with its digested form ready for decompression. It's loaded raw for compression, since a
+     * dictionary digested for compression fixes the compression level.
+     */
+    public record Dictionary(int id, byte[] data, ZstdDictDecompress decompress) {
+        public static Dictionary of(byte[] data) {
+            int id = (int) Zstd.getDictIdFromDict(data);
+            if (id == 0)
+                throw new IllegalArgumentException("Not a zstd dictionary");
+            return new Dictionary(id, data, new ZstdDictDecompress(data));
+        }
+    }
+}
@@ -39,10 +39,25 @@ public class RegionPos {
         }
     }
 
+    public static RegionPos of(int x, int y, int z) {
+        return new RegionPos(x, y, z);
+    }
+
     public static RegionPos fromChunk(ChunkPos id) {
-        int regX = id.getX() >> 5;
-        int regY = id.getY() >> 5;
-        int regZ = id.getZ() >> 5;
+        return fromChunk(id, 5);
+    }
+
+    /**
+     * Returns the position of the region containing a chunk.
+     *
+     * @param id          the chunk position.
+     * @param regionShift the number of chunks on each side of a region, as a power of two.
+     * @return the region position.
+     */
+    public static RegionPos fromChunk(ChunkPos id, int regionShift) {
+        int regX = id.getX() >> regionShift;
+        int regY = id.getY() >> regionShift;
+        int regZ = id.getZ() >> regionShift;
         return new RegionPos(regX, regY, regZ);
     }
 